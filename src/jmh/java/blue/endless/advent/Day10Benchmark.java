@@ -0,0 +1,47 @@
+package blue.endless.advent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The visibility search from day 10, on the top-left size x size corner of the real asteroid field. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Day10Benchmark {
+	/** Anything bigger than the input just gets the whole input. */
+	@Param({ "8", "16", "64" })
+	public int size;
+	
+	private Day10.AsteroidField field;
+	
+	@Setup
+	public void load() {
+		List<String> cropped = new ArrayList<>();
+		for(String line : AdventOfCode.loadFile("day10.dat")) {
+			if (cropped.size()>=size) break;
+			cropped.add(line.substring(0, Math.min(size, line.length())));
+		}
+		field = new Day10.AsteroidField(cropped);
+	}
+	
+	@Benchmark
+	public Day10.Point2i bestDetector() {
+		return Day10.bestDetector(field);
+	}
+}
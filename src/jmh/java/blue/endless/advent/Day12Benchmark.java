@@ -0,0 +1,43 @@
+package blue.endless.advent;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The n-body moon simulation from day 12, for a given number of steps from the real starting positions. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Day12Benchmark {
+	@Param({ "10", "100", "1000" })
+	public int steps;
+	
+	private List<Day12.Moon> prototype;
+	
+	@Setup
+	public void load() {
+		prototype = Day12.parseLines(AdventOfCode.loadFile("day12.dat"));
+	}
+	
+	/** Includes cloning the moons, since run() moves them. That's four small objects against thousands of steps. */
+	@Benchmark
+	public int simulate() {
+		List<Day12.Moon> moons = Day12.cloneMoons(prototype);
+		Day12.run(moons, steps);
+		return Day12.totalEnergy(moons);
+	}
+}
@@ -0,0 +1,61 @@
+package blue.endless.advent;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The reaction walk from day 14, for some amount of FUEL. walk() narrates everything it does to
+ * stdout, so stdout goes nowhere for the duration; what's left is still the cost of building the
+ * strings, which is part of the walk as it stands.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Day14Benchmark {
+	@Param({ "1", "10", "100" })
+	public int fuel;
+	
+	private Map<String, Day14.Reaction> reactions;
+	private PrintStream realOut;
+	
+	@Setup
+	public void load() {
+		reactions = Day14.parseReactions(AdventOfCode.loadFile("day14.dat"));
+		realOut = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		}));
+	}
+	
+	@TearDown
+	public void restoreOut() {
+		System.setOut(realOut);
+	}
+	
+	@Benchmark
+	public void walk() {
+		Day14.walk(reactions, "FUEL", fuel);
+	}
+}
@@ -0,0 +1,46 @@
+package blue.endless.advent;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One phase of the day 16 FFT on the puzzle input, stretched (like part two does) and cut to
+ * size digits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Day16Benchmark {
+	@Param({ "650", "2600", "6500" })
+	public int size;
+	
+	private long[] input;
+	private final long[] basePattern = { 0L, 1L, 0L, -1L };
+	
+	@Setup
+	public void load() {
+		long[] digits = Day16.decode(Day16.INPUT);
+		int times = (size+digits.length-1) / digits.length;
+		input = Arrays.copyOf(Day16.stretch(digits, times), size);
+	}
+	
+	@Benchmark
+	public long[] transform() {
+		return Day16.transform(basePattern, input);
+	}
+}
@@ -0,0 +1,81 @@
+package blue.endless.advent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JOBS runs of the Day5 diagnostic, alternating system IDs 1 and 5, three ways: a fresh core per
+ * run, IntcodeBatch.run in a loop on one thread, and IntcodeBatch.runAll over the pool. Each
+ * benchmark gets its own forks, so none of them warms the JIT up for another. runAll only comes
+ * out ahead with more than one core to run on; the thing to check is that it never comes out
+ * behind the loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IntcodeBatchBenchmark {
+	public static final int JOBS = 10_000;
+	
+	@Param({ "1", "4" })
+	public int threads;
+	
+	private long[] program;
+	private IntcodeBatch batch;
+	
+	@Setup
+	public void load() {
+		program = Day9.decode(AdventOfCode.loadFile("day5.dat").get(0));
+		batch = new IntcodeBatch(program, threads);
+	}
+	
+	@TearDown
+	public void close() {
+		batch.close();
+	}
+	
+	private static long systemId(int job) {
+		return ((job & 1)==0) ? 1L : 5L;
+	}
+	
+	@Benchmark
+	public long freshCores() {
+		long sum = 0;
+		for(int i=0; i<JOBS; i++) {
+			Day9.IntcodeCore core = new Day9.IntcodeCore();
+			core.compiler = null;
+			core.setMemory(program.clone());
+			core.state.input.push(systemId(i));
+			core.runFast();
+			sum += core.state.output.drainAll().length;
+		}
+		return sum;
+	}
+	
+	@Benchmark
+	public long runLoop() {
+		long sum = 0;
+		for(int i=0; i<JOBS; i++) sum += batch.run(systemId(i)).length;
+		return sum;
+	}
+	
+	@Benchmark
+	public long runAll() {
+		return batch.runAll(IntStream.range(0, JOBS).mapToObj((i)->new long[] { systemId(i) })).mapToLong((out)->out.length).sum();
+	}
+}
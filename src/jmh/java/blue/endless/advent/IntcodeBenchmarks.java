@@ -0,0 +1,136 @@
+package blue.endless.advent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The Day9 core on real programs: map dispatch, switch dispatch with and without fused
+ * instructions, compiled blocks, and tracing that builds the disassembly strings. Then the older
+ * Day5 computer and the Day2 tape so we can see how far we've come. Run with -prof gc (the jmh
+ * task does) to see what each one allocates per run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntcodeBenchmarks {
+	/** boost-test is BOOST in test mode (short), boost is the full sensor run, arcade is day 13 in free play. */
+	@Param({ "boost-test", "boost", "arcade" })
+	public String workload;
+	
+	private long[] program;
+	private long[] inputs;
+	private int[] diagnostic;
+	private int[] gravityAssist;
+	private IntcodeBatch diagnosticBatch;
+	
+	@Setup
+	public void load() {
+		switch(workload) {
+		case "boost-test":
+			program = Day9.decode(AdventOfCode.loadFile("day9.dat").get(0));
+			inputs = new long[] { 1L };
+			break;
+		case "boost":
+			program = Day9.decode(AdventOfCode.loadFile("day9.dat").get(0));
+			inputs = new long[] { 2L };
+			break;
+		case "arcade":
+			program = Day9.decode(AdventOfCode.loadFile("day13.dat").get(0));
+			inputs = new long[0];
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown workload "+workload);
+		}
+		
+		diagnostic = Day7.decodeMemory(AdventOfCode.loadFile("day5.dat").get(0));
+		gravityAssist = Day7.decodeMemory(AdventOfCode.loadFile("intcode.txt").get(0));
+		diagnosticBatch = new IntcodeBatch(Day9.decode(AdventOfCode.loadFile("day5.dat").get(0)));
+	}
+	
+	private Day9.IntcodeCore core() {
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = null;
+		core.setMemory(program.clone());
+		core.state.input.pushAll(inputs);
+		return core;
+	}
+	
+	/** Runs the program through step(), one map lookup and lambda call per instruction. */
+	@Benchmark
+	public IntcodeChannel mapDispatch() {
+		Day9.IntcodeCore core = core();
+		while(!core.state.isHalted() && !core.state.waits()) core.step(false);
+		return core.state.output;
+	}
+	
+	@Benchmark
+	public IntcodeChannel switchDispatch() {
+		Day9.IntcodeCore core = core();
+		core.runFast();
+		return core.state.output;
+	}
+	
+	/** switchDispatch one instruction at a time, to see what fusing pairs buys. */
+	@Benchmark
+	public IntcodeChannel unfused() {
+		Day9.IntcodeCore core = core();
+		core.fuseInstructions = false;
+		core.runFast();
+		return core.state.output;
+	}
+	
+	/** Compiled blocks are shared between cores running the same code, so after warmup this measures the compiled code rather than javac. */
+	@Benchmark
+	public IntcodeChannel compiled() {
+		Day9.IntcodeCore core = core();
+		core.compiler = new IntcodeCompiler();
+		core.runFast();
+		return core.state.output;
+	}
+	
+	/** What a trace listener costs when it actually looks at every instruction. */
+	@Benchmark
+	public void disassembling(Blackhole blackhole) {
+		Day9.IntcodeCore core = core();
+		core.tracer = (state)->blackhole.consume(state.disassemble());
+		core.runFast();
+		blackhole.consume(core.state.output);
+	}
+	
+	/** Day5's computer on the thermal environment diagnostic. Doesn't depend on the workload. */
+	@Benchmark
+	public IntcodeChannel day5Computer() {
+		Day5.ShipComputer computer = new Day5.ShipComputer();
+		computer.reset(diagnostic);
+		computer.state.input.push(5);
+		computer.run(false);
+		return computer.state.output;
+	}
+	
+	/** The same diagnostic on a reused IntcodeBatch core, which is what a sweep over many inputs pays per run. */
+	@Benchmark
+	public long[] day5Batch() {
+		return diagnosticBatch.run(5L);
+	}
+	
+	/** One noun/verb try on the Day2 tape. Doesn't depend on the workload. */
+	@Benchmark
+	public int day2Tape() {
+		return new Day2.Tape(gravityAssist.length).run(gravityAssist, 12, 2);
+	}
+}
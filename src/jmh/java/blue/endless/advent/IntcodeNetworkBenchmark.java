@@ -0,0 +1,58 @@
+package blue.endless.advent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The day 7 amplifier on IntcodeNetwork: the five-node resonant ring from part two, and a
+ * pipeline of size amplifiers to see how the network copes with a crowd.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntcodeNetworkBenchmark {
+	private static final long[] RING_SETTINGS = { 6, 9, 8, 7, 5 };
+	
+	@Param({ "5", "2000" })
+	public int size;
+	
+	private long[] amplifier;
+	
+	@Setup
+	public void load() {
+		amplifier = Day9.decode(AdventOfCode.loadFile("day7.dat").get(0));
+	}
+	
+	/** Doesn't depend on size; a resonant ring is always five amplifiers. */
+	@Benchmark
+	public long[] ring() {
+		IntcodeNetwork ring = IntcodeNetwork.ring(amplifier, RING_SETTINGS.length);
+		for(int i=0; i<RING_SETTINGS.length; i++) ring.node(i).send(RING_SETTINGS[i]);
+		ring.node(0).send(0L);
+		ring.run();
+		return ring.node(0).inboxContents();
+	}
+	
+	@Benchmark
+	public IntcodeChannel pipeline() {
+		IntcodeNetwork pipeline = IntcodeNetwork.pipeline(amplifier, size);
+		for(int i=0; i<size; i++) pipeline.node(i).send(i % 5);
+		pipeline.node(0).send(0L);
+		pipeline.run();
+		return pipeline.output;
+	}
+}
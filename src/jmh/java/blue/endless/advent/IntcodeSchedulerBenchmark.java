@@ -0,0 +1,70 @@
+package blue.endless.advent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One round trip through an echo core in the scheduler's interactive line, with busyCores cores
+ * in the background that loop forever and never yield on their own. Sampled rather than
+ * averaged, because the number that matters is the tail: how long the user waits when the
+ * background is at its busiest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntcodeSchedulerBenchmark {
+	private static final long[] SPIN = { 1105, 1, 0 };
+	private static final long[] ECHO = { 3, 7, 4, 7, 1105, 1, 0, 0 };
+	
+	@Param({ "0", "50" })
+	public int busyCores;
+	
+	private IntcodeScheduler scheduler;
+	private IntcodeScheduler.Job echo;
+	private long next = 0;
+	
+	private static Day9.IntcodeCore load(long[] program) {
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.setMemory(program.clone());
+		return core;
+	}
+	
+	@Setup
+	public void start() throws InterruptedException {
+		scheduler = new IntcodeScheduler(2, IntcodeScheduler.DEFAULT_QUANTUM);
+		for(int i=0; i<busyCores; i++) scheduler.submit(load(SPIN));
+		echo = scheduler.submitInteractive(load(ECHO));
+		echo.awaitYield();
+	}
+	
+	/** The spinners never halt, but the workers are daemons, so they go when the fork does. */
+	@TearDown
+	public void stop() {
+		scheduler.close();
+	}
+	
+	@Benchmark
+	public long roundTrip() throws InterruptedException {
+		echo.core.state.output.clear();
+		echo.core.state.input.push(next);
+		echo.resume();
+		echo.awaitYield();
+		if (echo.core.state.output.size()!=1 || echo.core.state.output.peek()!=next) throw new IllegalStateException("Echo came back wrong: "+echo.core.state.output);
+		return next++;
+	}
+}
@@ -111,6 +111,10 @@ public class AdventOfCode {
 			Day7.runResonantFromFile();
 			break;
 		}
+		case "7c": {
+			Day7.runConcurrentResonantFromFile();
+			break;
+		}
 		
 		case "8": {
 			Day8.runFromFile();
@@ -130,6 +134,10 @@ public class AdventOfCode {
 			Day9.runPartTwo();
 			break;
 		}
+		case "9profile": {
+			Day9.runProfiled();
+			break;
+		}
 		
 		case "10": {
 			/*
@@ -197,6 +205,10 @@ public class AdventOfCode {
 			Day13.runInteractive(loadFile("day13.dat"));
 			break;
 		}
+		case "13checkpoint": {
+			Day13.runCheckpointed(loadFile("day13.dat"));
+			break;
+		}
 		
 		case "14": {
 			Day14.run(loadFile("day14.dat"));
@@ -215,6 +227,10 @@ public class AdventOfCode {
 			Day15.runPartTwo();
 			break;
 		}
+		case "15search": {
+			Day15.runSearch();
+			break;
+		}
 		
 		case "16": {
 			Day16.run();
@@ -229,6 +245,27 @@ public class AdventOfCode {
 			Day17.run();
 			break;
 		}
+		
+		case "cfg": {
+			IntcodeCfg.run((args.length>1) ? args[1] : "day9.dat", (args.length>2) ? args[2] : null);
+			break;
+		}
+		
+		case "trace": {
+			long[] inputs = new long[Math.max(0, args.length-3)];
+			for(int i=0; i<inputs.length; i++) inputs[i] = Long.parseLong(args[i+3]);
+			IntcodeTraceRecorder.record((args.length>1) ? args[1] : "day9.dat", (args.length>2) ? args[2] : "day9.trace", inputs);
+			break;
+		}
+		
+		case "showtrace": {
+			try {
+				IntcodeTraceRecorder.render(Paths.get((args.length>1) ? args[1] : "day9.trace"), System.out, args.length>2 && args[2].equals("results"));
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			break;
+		}
 		}
 	}
 	
@@ -0,0 +1,237 @@
+package blue.endless.advent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An IntcodeChannel that machines on different threads can share. Reads wait for a value, and
+ * pushes wait while the channel is at capacity.
+ *
+ * <p>Every channel in a pipeline locks the same Group, which also keeps track of how many
+ * machines are still running and which ones are waiting on what. If everyone still running is
+ * waiting on something that hasn't happened, nobody can ever wake them up, so the group calls it a
+ * deadlock and lets them all go. That's decided the moment the last machine blocks or halts,
+ * rather than by somebody polling for it. This assumes one reader and one writer per channel,
+ * which is how amplifiers get wired up anyway.
+ */
+public class BlockingIntcodeChannel extends IntcodeChannel {
+	private final Group group;
+	private final int capacity;
+	/** Set once whoever reads from this channel has halted. Nothing will drain it, so pushes stop blocking. */
+	private boolean readerHalted = false;
+	
+	public BlockingIntcodeChannel(Group group, int capacity) {
+		super(capacity);
+		this.group = group;
+		this.capacity = Math.max(1, capacity);
+	}
+	
+	/**
+	 * Blocks until there's something to read. Returns false if the group deadlocked instead, in
+	 * which case the caller should give up.
+	 */
+	public boolean awaitInput() throws InterruptedException {
+		synchronized(group) {
+			while(super.isEmpty()) {
+				if (!group.block(super::isEmpty)) return false;
+			}
+			return true;
+		}
+	}
+	
+	/** Called by the machine reading this channel when it halts. Also counts it out of the group. */
+	public void readerHalted() {
+		synchronized(group) {
+			readerHalted = true;
+			group.halted();
+		}
+	}
+	
+	@Override
+	public void push(long value) {
+		synchronized(group) {
+			try {
+				while(super.size()>=capacity && !readerHalted) {
+					//If we deadlock here, keep the value anyway; whoever's cleaning up might want to see it
+					if (!group.block(this::isFullForWriter)) break;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			super.push(value);
+			group.notifyAll();
+		}
+	}
+	
+	/**
+	 * Pushes as much as fits, waits for the reader to make room, and so on until it's all in, so a
+	 * bulk writer is held to capacity the same as push. pushAll(long...) comes through here too.
+	 */
+	@Override
+	public void pushAll(long[] values, int offset, int length) {
+		synchronized(group) {
+			boolean blocking = true;
+			while(length>0) {
+				if (blocking) {
+					try {
+						while(isFullForWriter()) {
+							//Deadlocked; push the rest anyway, same as push does
+							if (!group.block(this::isFullForWriter)) {
+								blocking = false;
+								break;
+							}
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						blocking = false;
+					}
+				}
+				int count = (blocking && !readerHalted) ? Math.min(length, capacity-super.size()) : length;
+				super.pushAll(values, offset, count);
+				offset += count;
+				length -= count;
+				group.notifyAll();
+			}
+		}
+	}
+	
+	private boolean isFullForWriter() {
+		return super.size()>=capacity && !readerHalted;
+	}
+	
+	@Override
+	public void pushFirst(long value) {
+		synchronized(group) {
+			super.pushFirst(value);
+			group.notifyAll();
+		}
+	}
+	
+	@Override
+	public long poll() {
+		synchronized(group) {
+			long result = super.poll();
+			group.notifyAll();
+			return result;
+		}
+	}
+	
+	@Override
+	public long peek() {
+		synchronized(group) {
+			return super.peek();
+		}
+	}
+	
+	@Override
+	public long get(int index) {
+		synchronized(group) {
+			return super.get(index);
+		}
+	}
+	
+	@Override
+	public int drain(long[] dest, int offset, int length) {
+		synchronized(group) {
+			int result = super.drain(dest, offset, length);
+			group.notifyAll();
+			return result;
+		}
+	}
+	
+	@Override
+	public long[] drainAll() {
+		synchronized(group) {
+			return super.drainAll();
+		}
+	}
+	
+	/** A snapshot of what's in the channel right now, as a plain, non-blocking IntcodeChannel. */
+	@Override
+	public IntcodeChannel copy() {
+		synchronized(group) {
+			return super.copy();
+		}
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		synchronized(group) {
+			return super.isEmpty();
+		}
+	}
+	
+	@Override
+	public int size() {
+		synchronized(group) {
+			return super.size();
+		}
+	}
+	
+	@Override
+	public void clear() {
+		synchronized(group) {
+			super.clear();
+			group.notifyAll();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		synchronized(group) {
+			return super.toString();
+		}
+	}
+	
+	/** The shared lock and bookkeeping for a set of machines wired together with BlockingIntcodeChannels. */
+	public static class Group {
+		private int running;
+		/**
+		 * What each waiting machine is waiting on; each one returns true while it's still stuck. A
+		 * machine that's been notified but hasn't gotten the lock back yet is still in here, which
+		 * is why we can't just count heads.
+		 */
+		private final List<BooleanSupplier> waiting = new ArrayList<>();
+		private boolean deadlocked = false;
+		
+		public Group(int machines) {
+			this.running = machines;
+		}
+		
+		public synchronized boolean isDeadlocked() {
+			return deadlocked;
+		}
+		
+		/**
+		 * Waits (with the group lock held) until some other machine makes progress. Returns false
+		 * if nobody else can, meaning we're deadlocked.
+		 */
+		private boolean block(BooleanSupplier stuck) throws InterruptedException {
+			if (deadlocked) return false;
+			waiting.add(stuck);
+			try {
+				checkDeadlock();
+				if (!deadlocked) wait();
+			} finally {
+				waiting.remove(stuck);
+			}
+			return !deadlocked;
+		}
+		
+		private void halted() {
+			running--;
+			checkDeadlock();
+			notifyAll();
+		}
+		
+		private void checkDeadlock() {
+			if (running<=0 || waiting.size()<running) return;
+			for(BooleanSupplier stuck : waiting) {
+				if (!stuck.getAsBoolean()) return;
+			}
+			deadlocked = true;
+			notifyAll();
+		}
+	}
+}
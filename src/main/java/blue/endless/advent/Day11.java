@@ -9,24 +9,24 @@ import java.util.List;
 import java.util.Set;
 
 public class Day11 {
-	public static class IntcodeTurtle {
+	/**
+	 * The robot is the core's input and output device both: IN reads the camera, and every two
+	 * values OUT sends are a paint color and then a turn.
+	 */
+	public static class IntcodeTurtle implements Day9.InputDevice, Day9.OutputDevice {
 		Direction dir = Direction.UP;
 		Day9.IntcodeCore core = new Day9.IntcodeCore();
 		int x = 30;
 		int y = 40;
 		Hull hull = new Hull(200, 200);
 		List<Day10.Point2i> paintOrder = new ArrayList<>();
+		/** The color half of a paint-and-turn, waiting on the turn */
+		long panelColor = 0;
+		boolean colorPending = false;
 		
 		public IntcodeTurtle() {
-			//Replace the computer's input instruction with one which reads the robot's camera
-			core.opcodes.put(3, (state)->{
-				flushOutputs();
-				state.lineDisassembly = "IN  "+state.explain(0);
-				
-				long input = hull.readInt(x, y);
-				state.write(0, input);
-				state.programCounter += 2;
-			});
+			core.state.inputDevice = this;
+			core.state.outputDevice = this;
 		}
 		
 		public void loadProgram(String s) {
@@ -34,33 +34,52 @@ public class Day11 {
 			core.setMemory(mem);
 		}
 		
-		public void flushOutputs() {
-			if (core.state.output.isEmpty()) return;
-			while (!core.state.output.isEmpty()) {
-				if (core.state.output.size()==1) {
-					//Don't clobber the prior error if it exists, but if it doesn't, give us *some* idea what happened.
-					if (core.state.error.isEmpty()) core.state.error = "Machine yielded in invalid state: Painting robots always output two values!";
-					core.state.halt();
-					return;
-				}
-				long panelColor = core.state.output.remove(0);
-				long direction = core.state.output.remove(0);
-				
-				hull.paint(x, y, (int)panelColor);
-				paintOrder.add(new Day10.Point2i(x, y));
-				
-				if (direction==0) { //LEFT
-					dir = dir.left();
-					moveForward();
-				} else if (direction==1) { //RIGHT
-					dir = dir.right();
-					moveForward();
-				} else {
-					core.state.error = "Invalid turn direction '"+direction+"'";
-					core.state.halt();
-					return;
-				}
+		/** The camera always has a picture for us. */
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+		
+		@Override
+		public long poll() {
+			if (colorPending) {
+				//Don't clobber the prior error if it exists, but if it doesn't, give us *some* idea what happened.
+				if (core.state.error.isEmpty()) core.state.error = "Machine yielded in invalid state: Painting robots always output two values!";
+				core.state.halt();
 			}
+			return hull.readInt(x, y);
+		}
+		
+		@Override
+		public void push(long value) {
+			if (!colorPending) {
+				panelColor = value;
+				colorPending = true;
+				return;
+			}
+			long direction = value;
+			
+			hull.paint(x, y, (int)panelColor);
+			paintOrder.add(new Day10.Point2i(x, y));
+			colorPending = false;
+			
+			if (direction==0) { //LEFT
+				dir = dir.left();
+				moveForward();
+			} else if (direction==1) { //RIGHT
+				dir = dir.right();
+				moveForward();
+			} else {
+				core.state.error = "Invalid turn direction '"+direction+"'";
+				core.state.halt();
+			}
+		}
+		
+		/** Outputs get painted as they come now, so all that's left to check is a paint that never got its turn. */
+		public void flushOutputs() {
+			if (!colorPending) return;
+			if (core.state.error.isEmpty()) core.state.error = "Machine yielded in invalid state: Painting robots always output two values!";
+			core.state.halt();
 		}
 		
 		public void run() {
@@ -1,5 +1,9 @@
 package blue.endless.advent;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
 public class Day13 {
@@ -7,13 +11,7 @@ public class Day13 {
 		Day9.IntcodeCore core = new Day9.IntcodeCore();
 		core.setMemory(Day9.decode(data.get(0)));
 		GraphicsCard gpu = new GraphicsCard();
-		core.opcodes.put(4, (state)->{
-			state.lineDisassembly = "OUT "+state.explain(0);
-			long out = state.fetch(0);
-			gpu.consume(out);
-			
-			state.programCounter += 2;
-		});
+		core.state.outputDevice = gpu;
 		
 		MiniTerminal term = new MiniTerminal();
 		gpu.term = term;
@@ -57,15 +55,9 @@ public class Day13 {
 	public static void runInteractive(List<String> data) {
 		Day9.IntcodeCore core = new Day9.IntcodeCore();
 		core.setMemory(Day9.decode(data.get(0)));
-		core.state.memory[0] = 2L;
+		core.state.storeAbsolute(0, 2L); //Insert quarters
 		GraphicsCard gpu = new GraphicsCard();
-		core.opcodes.put(4, (state)->{
-			state.lineDisassembly = "OUT "+state.explain(0);
-			long out = state.fetch(0);
-			gpu.consume(out);
-			
-			state.programCounter += 2;
-		});
+		core.state.outputDevice = gpu;
 		
 		MiniTerminal term = new MiniTerminal();
 		gpu.term = term;
@@ -79,18 +71,18 @@ public class Day13 {
 					Thread.sleep(10);
 				} catch (InterruptedException e) {}
 				
-				core.state.input.add((long)getRelativeX(term));
+				core.state.input.push((long)getRelativeX(term));
 				
 				//Turns out interactive mode isn't super helpful.
 				/*
 				if (term.leftPressed && term.rightPressed) {
-					core.state.input.add(0L);
+					core.state.input.push(0L);
 				} else if (term.leftPressed) {
-					core.state.input.add(-1L);
+					core.state.input.push(-1L);
 				} else if (term.rightPressed) {
-					core.state.input.add(1L);
+					core.state.input.push(1L);
 				} else {
-					core.state.input.add(0L);
+					core.state.input.push(0L);
 				}*/
 			}
 		}
@@ -98,12 +90,105 @@ public class Day13 {
 		
 	}
 	
-	private static class GraphicsCard {
+	/** How many frames into the game runCheckpointed saves its checkpoint */
+	public static final int CHECKPOINT_FRAME = 1000;
+	
+	/**
+	 * Plays the whole game headless, writing a checkpoint partway through. Then loads the checkpoint
+	 * back and plays out the rest a second time, which had better end on the same score. The
+	 * graphics card isn't part of the machine state, so we keep a copy of it from the same moment.
+	 */
+	public static void runCheckpointed(List<String> data) {
+		Path file = Paths.get("day13.ckpt");
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.setMemory(Day9.decode(data.get(0)));
+		core.state.storeAbsolute(0, 2L); //Insert quarters
+		GraphicsCard gpu = new GraphicsCard();
+		gpu.printScore = false;
+		core.state.outputDevice = gpu;
+		
+		try {
+			GraphicsCard savedGpu = null;
+			int frame = 0;
+			while(true) {
+				core.runUntilYield(false);
+				if (core.state.isHalted()) break;
+				frame++;
+				if (frame==CHECKPOINT_FRAME) {
+					long start = System.nanoTime();
+					IntcodeCheckpoint.save(core, file);
+					System.out.println(String.format("Checkpointed frame %d in %.3f ms (%d bytes, score so far %d)",
+							frame, (System.nanoTime()-start)/1_000_000.0, Files.size(file), gpu.score));
+					savedGpu = gpu.copy();
+				}
+				core.state.input.push(Long.signum(gpu.ballX-gpu.paddleX));
+			}
+			long firstScore = gpu.score;
+			System.out.println("Halted after "+frame+" frames. Final score: "+firstScore);
+			
+			if (savedGpu==null) {
+				System.out.println("Game ended before frame "+CHECKPOINT_FRAME+"; nothing to restore.");
+				return;
+			}
+			
+			long start = System.nanoTime();
+			IntcodeCheckpoint.restore(core, file);
+			core.state.outputDevice = gpu; //Devices aren't part of a checkpoint
+			gpu.restore(savedGpu);
+			System.out.println(String.format("Restored frame %d in %.3f ms", CHECKPOINT_FRAME, (System.nanoTime()-start)/1_000_000.0));
+			while(true) {
+				core.state.input.push(Long.signum(gpu.ballX-gpu.paddleX));
+				core.runUntilYield(false);
+				if (core.state.isHalted()) break;
+			}
+			System.out.println("Replayed from checkpoint. Final score: "+gpu.score+((gpu.score==firstScore) ? " (matches)" : " (MISMATCH)"));
+			
+			Files.deleteIfExists(file);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	/** Sits on the core's output, and draws (or keeps score) every three values it gets. */
+	private static class GraphicsCard implements Day9.OutputDevice {
 		int x = -99;
 		int y = -99;
 		int tile = -99;
 		MiniTerminal term;
 		long score = -999;
+		boolean printScore = true;
+		/** Where the ball and paddle were last drawn, so we can play without a terminal to look at */
+		int ballX = -1;
+		int paddleX = -1;
+		
+		public GraphicsCard copy() {
+			GraphicsCard result = new GraphicsCard();
+			result.x = x;
+			result.y = y;
+			result.tile = tile;
+			result.term = term;
+			result.score = score;
+			result.printScore = printScore;
+			result.ballX = ballX;
+			result.paddleX = paddleX;
+			return result;
+		}
+		
+		public void restore(GraphicsCard other) {
+			x = other.x;
+			y = other.y;
+			tile = other.tile;
+			term = other.term;
+			score = other.score;
+			printScore = other.printScore;
+			ballX = other.ballX;
+			paddleX = other.paddleX;
+		}
+		
+		@Override
+		public void push(long value) {
+			consume(value);
+		}
 		
 		public void consume(long i) {
 			if (x==-99) {
@@ -112,14 +197,16 @@ public class Day13 {
 				y = (int)i;
 			} else {
 				if (x==-1 && y==0) { //Segment Display
-					System.out.println("Score: "+i);
+					if (printScore) System.out.println("Score: "+i);
 					this.score = i;
 					//term.setCursorPos(35, 20);
 					//term.println(""+i);
 				} else {             //Primary Display
+					tile = (int)i;
+					if (tile==3) paddleX = x;
+					if (tile==4) ballX = x;
 					if (term!=null) {
 						char ch = '?';
-						tile = (int)i;
 						switch(tile) {
 						case 0: ch = '.'; break;
 						case 1: ch = '@'; break;
@@ -2,8 +2,11 @@ package blue.endless.advent;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class Day15 {
 	public static void runInteractive() {
@@ -13,10 +16,9 @@ public class Day15 {
 		core.setMemory(program);
 		
 		MiniTerminal term = new MiniTerminal(60, 60);
-		
-		Day10.Point2i droidStart = new Day10.Point2i(30, 30);
-		Day10.Point2i droidPosition = new Day10.Point2i(30, 30);
-		Day10.Point2i oxygenLocation = new Day10.Point2i(-1, -1);
+		RepairDroid droid = new RepairDroid(term);
+		core.state.inputDevice = droid;
+		core.state.outputDevice = droid;
 		
 		term.addKeyListener(new KeyListener() {
 
@@ -24,80 +26,31 @@ public class Day15 {
 			public void keyPressed(KeyEvent evt) {
 				//System.out.println("EVT");
 				if (core.state.waits()) {
-					long lastDirection = 0L;
 					switch(evt.getKeyCode()) {
 					case KeyEvent.VK_UP:
-						lastDirection = 1L;
+						droid.command(1L);
 						break;
 					case KeyEvent.VK_DOWN:
-						lastDirection = 2L;
+						droid.command(2L);
 						break;
 					case KeyEvent.VK_LEFT:
-						lastDirection = 3L;
+						droid.command(3L);
 						break;
 					case KeyEvent.VK_RIGHT:
-						lastDirection = 4L;
+						droid.command(4L);
 						break;
 					default:
 						return;
 					}
-					core.state.input.add(lastDirection);
 					
 					core.runUntilYield(true);
-					
-					long result = core.state.output.remove(0);
-					
-					if (droidPosition.equals(droidStart)) {
-						term.putChar(droidPosition.x, droidPosition.y, 'S');
-					} else if (oxygenLocation!=null && oxygenLocation.equals(droidPosition)) {
-						term.putChar(droidPosition.x, droidPosition.y, '!');
-					} else {
-						term.putChar(droidPosition.x, droidPosition.y, '.');
-					}
-					
-					if (result==0L) {
-						int wallX = droidPosition.x;
-						int wallY = droidPosition.y;
-						switch((int)lastDirection) {
-						case 1: wallY--; break;
-						case 2: wallY++; break;
-						case 3: wallX--; break;
-						case 4: wallX++; break;
-						}
-						term.putChar(wallX, wallY, '#');
-						
-						//System.out.println("Bonk!");
-					} else if (result==1L) {
-						switch((int)lastDirection) {
-						case 1: droidPosition.y--; break;
-						case 2: droidPosition.y++; break;
-						case 3: droidPosition.x--; break;
-						case 4: droidPosition.x++; break;
-						}
-						
-						//System.out.println("Okay.");
-					} else if (result==2L) {
-						switch((int)lastDirection) {
-						case 1: droidPosition.y--; break;
-						case 2: droidPosition.y++; break;
-						case 3: droidPosition.x--; break;
-						case 4: droidPosition.x++; break;
-						}
-						oxygenLocation.x = droidPosition.x;
-						oxygenLocation.y = droidPosition.y;
-						System.out.println("Okay. Oxygen system found!");
-					}
-					
-					term.putChar(droidPosition.x, droidPosition.y, 'D');
-					
-					
 					term.paintTerminal();
 				}
 			}
-
+			
 			@Override
 			public void keyReleased(KeyEvent evt) {}
-
+			
 			@Override
 			public void keyTyped(KeyEvent evt) {
 				
@@ -105,13 +58,162 @@ public class Day15 {
 			
 		});
 		
-		term.putChar(droidPosition.x, droidPosition.y, 'D');
+		term.putChar(droid.position.x, droid.position.y, 'D');
 		term.setVisible(true);
 		
 		
 		core.runUntilYield(true);
 	}
 	
+	/**
+	 * The droid's end of the remote control, as the core's devices: IN reads whatever key got
+	 * pressed last, and each status the program sends back gets drawn on the terminal.
+	 */
+	private static class RepairDroid implements Day9.InputDevice, Day9.OutputDevice {
+		final MiniTerminal term;
+		final Day10.Point2i start = new Day10.Point2i(30, 30);
+		final Day10.Point2i position = new Day10.Point2i(30, 30);
+		final Day10.Point2i oxygenLocation = new Day10.Point2i(-1, -1);
+		/** The move the keyboard asked for that the program hasn't read yet, or 0 */
+		long pendingDirection = 0L;
+		long lastDirection = 0L;
+		
+		RepairDroid(MiniTerminal term) {
+			this.term = term;
+		}
+		
+		public void command(long direction) {
+			pendingDirection = direction;
+		}
+		
+		@Override
+		public boolean isEmpty() {
+			return pendingDirection==0L;
+		}
+		
+		@Override
+		public long poll() {
+			lastDirection = pendingDirection;
+			pendingDirection = 0L;
+			return lastDirection;
+		}
+		
+		@Override
+		public void push(long result) {
+			if (position.equals(start)) {
+				term.putChar(position.x, position.y, 'S');
+			} else if (oxygenLocation.equals(position)) {
+				term.putChar(position.x, position.y, '!');
+			} else {
+				term.putChar(position.x, position.y, '.');
+			}
+			
+			if (result==0L) {
+				int wallX = position.x;
+				int wallY = position.y;
+				switch((int)lastDirection) {
+				case 1: wallY--; break;
+				case 2: wallY++; break;
+				case 3: wallX--; break;
+				case 4: wallX++; break;
+				}
+				term.putChar(wallX, wallY, '#');
+				
+				//System.out.println("Bonk!");
+			} else if (result==1L) {
+				move();
+				
+				//System.out.println("Okay.");
+			} else if (result==2L) {
+				move();
+				oxygenLocation.x = position.x;
+				oxygenLocation.y = position.y;
+				System.out.println("Okay. Oxygen system found!");
+			}
+			
+			term.putChar(position.x, position.y, 'D');
+		}
+		
+		private void move() {
+			switch((int)lastDirection) {
+			case 1: position.y--; break;
+			case 2: position.y++; break;
+			case 3: position.x--; break;
+			case 4: position.x++; break;
+			}
+		}
+	}
+	
+	/**
+	 * Both parts without a keyboard or a hand-drawn map. Breadth-first search where every cell on
+	 * the frontier has its own droid, forked from the droid that walked there. Forks share memory
+	 * copy-on-write, so a few hundred live droids cost about as much as one droid plus the pages
+	 * they've each scribbled on.
+	 */
+	public static void runSearch() {
+		long[] program = Day9.decode(AdventOfCode.loadFile("day15.dat").get(0));
+		Day9.IntcodeCore droid = new Day9.IntcodeCore();
+		droid.setMemory(program);
+		droid.runUntilYield(false);
+		
+		Explorer oxygen = explore(new Explorer(droid, new Day10.Point2i(0, 0), 0), true);
+		System.out.println("Oxygen system is at "+oxygen.position+", "+oxygen.distance+" moves away");
+		
+		Explorer farthest = explore(new Explorer(oxygen.droid, oxygen.position, 0), false);
+		System.out.println("Minutes to fill with oxygen: "+farthest.distance);
+	}
+	
+	/**
+	 * If stopAtOxygen is set, returns the first explorer to find the oxygen system. Otherwise floods
+	 * the whole maze and returns the explorer that ended up farthest from the start.
+	 */
+	private static Explorer explore(Explorer start, boolean stopAtOxygen) {
+		ArrayDeque<Explorer> frontier = new ArrayDeque<>();
+		Set<Day10.Point2i> visited = new HashSet<>();
+		frontier.add(start);
+		visited.add(start.position);
+		
+		Explorer last = start;
+		while(!frontier.isEmpty()) {
+			Explorer cur = frontier.poll();
+			last = cur;
+			for(int direction=1; direction<=4; direction++) {
+				Day10.Point2i next = new Day10.Point2i(cur.position.x, cur.position.y);
+				switch(direction) {
+				case 1: next.y--; break;
+				case 2: next.y++; break;
+				case 3: next.x--; break;
+				case 4: next.x++; break;
+				}
+				if (!visited.add(next)) continue;
+				
+				Day9.IntcodeCore fork = cur.droid.fork();
+				fork.state.input.push(direction);
+				fork.runUntilYield(false);
+				long result = fork.state.output.poll();
+				
+				if (result==0L) continue; //Bonk!
+				Explorer explorer = new Explorer(fork, next, cur.distance+1);
+				if (result==2L && stopAtOxygen) return explorer;
+				frontier.add(explorer);
+			}
+		}
+		
+		return last;
+	}
+	
+	private static class Explorer {
+		final Day9.IntcodeCore droid;
+		final Day10.Point2i position;
+		final int distance;
+		
+		Explorer(Day9.IntcodeCore droid, Day10.Point2i position, int distance) {
+			this.droid = droid;
+			this.position = position;
+			this.distance = distance;
+		}
+	}
+	
 	public static void runPartTwo() {
 		List<String> input = AdventOfCode.loadFile("day15b.dat");
 		Field field = new Field(input);
@@ -3,17 +3,18 @@ package blue.endless.advent;
 import java.util.Arrays;
 
 public class Day16 {
+	public static final String INPUT =
+			"5979067790332293069735877097945699671297385945170972051507448714124650741959003959"+
+			"8329735611909754526681279087091321241889537569965210074382210124927546962637736867"+
+			"7426602277965664668716805800052881001926708871740840775742582063075576825498367955"+
+			"9841062404254926180168911355988100862975204821386279655615668180216384321154644322"+
+			"8186862314896620419832148583664829023116082772951046466358463667825025457939806789"+
+			"4696838660092412294877087324359095446504280692631805222639092119862315812283304564"+
+			"4145192777712538859019717065396284208318691472161156045145992841881525444377346083"+
+			"2555717155899456905676980728095392900218760297612453568324542692109397431554";
+	
 	public static void run() {
-		long[] input = decode(
-				"5979067790332293069735877097945699671297385945170972051507448714124650741959003959"+
-				"8329735611909754526681279087091321241889537569965210074382210124927546962637736867"+
-				"7426602277965664668716805800052881001926708871740840775742582063075576825498367955"+
-				"9841062404254926180168911355988100862975204821386279655615668180216384321154644322"+
-				"8186862314896620419832148583664829023116082772951046466358463667825025457939806789"+
-				"4696838660092412294877087324359095446504280692631805222639092119862315812283304564"+
-				"4145192777712538859019717065396284208318691472161156045145992841881525444377346083"+
-				"2555717155899456905676980728095392900218760297612453568324542692109397431554"
-				);
+		long[] input = decode(INPUT);
 		long[] basePattern = { 0L, 1L, 0L, -1L };
 		
 		transformCycle(basePattern, input, 100);
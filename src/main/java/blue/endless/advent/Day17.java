@@ -1,26 +1,17 @@
 package blue.endless.advent;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class Day17 {
 	
-	public static List<String> stringifyOutput(List<Long> output) {
+	/** Drains the channel and splits what the camera sent into lines of text. */
+	public static List<String> stringifyOutput(IntcodeChannel output) {
 		List<String> lines = new ArrayList<>();
-		String line = "";
-		for(int i=0; i<output.size(); i++) {
-			long cur = output.get(i);
-			if (cur==10) {
-				lines.add(line);
-				line = "";
-			} else if (cur==13) {
-				//Skip newline
-			} else {
-				line += (char)cur;
-			}
-		}
-		if (!line.isEmpty()) lines.add(line.trim());
+		IntcodeConsole console = new IntcodeConsole((line)->lines.add(line.toString()));
+		long[] chars = output.drainAll();
+		console.pushAll(chars, 0, chars.length);
+		console.flush();
 		
 		return lines;
 	}
@@ -58,11 +49,16 @@ public class Day17 {
 		
 		Day9.IntcodeCore core = new Day9.IntcodeCore();
 		core.setMemory(Day9.decode(input.get(0)));
-		core.state.memory = Arrays.copyOf(core.state.memory, 8192); //Stretch memory further because the scaffold program is spendy
 		
+		//Take the camera feed a line at a time as it comes out
+		List<String> stringMap = new ArrayList<>();
+		IntcodeConsole console = new IntcodeConsole((line)->{
+			System.out.println(line);
+			stringMap.add(line.toString());
+		});
+		core.state.outputDevice = console;
 		core.runUntilYield(true);
-		List<String> stringMap = stringifyOutput(core);
-		print(stringMap);
+		console.flush();
 		
 		List<Day10.Point2i> intersections = new ArrayList<>();
 		
@@ -87,7 +83,6 @@ public class Day17 {
 		
 		Day9.IntcodeCore core = new Day9.IntcodeCore();
 		core.setMemory(Day9.decode(input.get(0)));
-		core.state.memory = Arrays.copyOf(core.state.memory, 8192); //Stretch memory further because the scaffold program is spendy
 		
 		core.runUntilYield(true);
 		List<String> stringMap = stringifyOutput(core);
@@ -1,7 +1,12 @@
 package blue.endless.advent;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <p>Don't be fooled by the Apollo window dressing, what today's exercises are about is building a Turing
@@ -55,7 +60,7 @@ public class Day2 {
 		
 		case 99: // Halt
 			return false;
-			
+		
 		case -1: // Halt and Catch Fire
 			/*
 			 * Burn the tape from start to finish with more halt-and-catch-fire instructions, requiring
@@ -65,7 +70,7 @@ public class Day2 {
 				tape.set(i, -1);
 			}
 			return false;
-			
+		
 		default: //Invalid Opcode
 			throw new RuntimeException("Unknown opcode "+op);
 		}
@@ -90,10 +95,9 @@ public class Day2 {
 	 * @throws NumberFormatException if one of the values in the list cannot be parsed into an Integer.
 	 */
 	public static List<Integer> decode(String s) throws NumberFormatException {
-		ArrayList<Integer> result = new ArrayList<>();
-		for(String t : s.split(",")) {
-			result.add(Integer.valueOf(t.trim()));
-		}
+		int[] cells = IntcodeLoader.parseInts(s);
+		ArrayList<Integer> result = new ArrayList<>(cells.length);
+		for(int cell : cells) result.add(cell);
 		
 		return result;
 	}
@@ -111,24 +115,346 @@ public class Day2 {
 	 * - The program inherently destroys its destination addresses, so it's irreversible
 	 * - The only solution seems to be brute-forcing
 	 * 
+	 * Turns out there's a middle ground: run the program once with the noun and verb left as
+	 * unknowns. Every add and multiply in there works on fixed addresses, so cell 0 comes out as
+	 * plain old c + x*noun + y*verb, and we can solve that directly. Brute force is still there for
+	 * programs where the unknowns get used as addresses or multiplied together.
+	 * 
 	 * ********************************************************************************************/
 	
+	/** Nouns and verbs are both tried from 0 up to (but not including) this. */
+	public static final int SEARCH_SIZE = 10000;
+	
+	/**
+	 * Finds the noun/verb pair that leaves desiredResult in cell 0, and prints it. If more than one
+	 * pair works, the one the old one-at-a-time search would have hit first (lowest noun, then
+	 * lowest verb) wins, no matter which thread got there first.
+	 */
 	public static void findAnswer(List<Integer> tape, int desiredResult) {
+		int[] image = new int[tape.size()];
+		for(int i=0; i<image.length; i++) image[i] = tape.get(i);
+		
+		Affine result = evaluateSymbolically(image);
+		if (result!=null) {
+			System.out.println("Solving symbolically: cell 0 = "+result);
+			long found = result.solve(desiredResult);
+			if (found==Long.MAX_VALUE) {
+				System.out.println("No solution found.");
+			} else {
+				int a = (int)(found/SEARCH_SIZE);
+				int b = (int)(found%SEARCH_SIZE);
+				System.out.println("Solution found: "+a+", "+b+" >> "+(100*a+b));
+			}
+			return;
+		}
+		
+		System.out.println("Program isn't linear in noun and verb, searching instead.");
+		PairSearch search = new PairSearch(image, desiredResult);
+		long start = System.nanoTime();
+		ForkJoinPool.commonPool().invoke(search.new NounRange(0, SEARCH_SIZE));
+		long elapsed = System.nanoTime()-start;
+		
+		long pairs = search.pairsTried.sum();
+		System.out.println(String.format("Tried %d pairs in %.1f ms (%.0f pairs/s on %d threads)",
+				pairs, elapsed/1_000_000.0, pairs/(elapsed/1_000_000_000.0), ForkJoinPool.commonPool().getParallelism()));
+		
+		long found = search.best.get();
+		if (found==Long.MAX_VALUE) {
+			System.out.println("No solution found.");
+		} else {
+			int a = (int)(found/SEARCH_SIZE);
+			int b = (int)(found%SEARCH_SIZE);
+			System.out.println("Solution found: "+a+", "+b+" >> "+(100*a+b));
+		}
+	}
+	
+	/**
+	 * Shared state for one parallel findAnswer. Pairs are numbered noun*SEARCH_SIZE+verb, and best
+	 * holds the lowest-numbered match so far. Workers skip anything numbered above it, so once a
+	 * match turns up everyone else winds down, except for whoever's still looking at earlier pairs.
+	 */
+	private static class PairSearch {
+		/** Below this many nouns, a range stops splitting and just runs. Each noun is SEARCH_SIZE runs. */
+		private static final int NOUNS_PER_TASK = 8;
+		
+		private final int[] image;
+		private final int desiredResult;
+		private final AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+		private final LongAdder pairsTried = new LongAdder();
+		/** One tape per worker thread, rewound for every pair instead of copying a list each time. */
+		private final ThreadLocal<Tape> tapes;
+		
+		PairSearch(int[] image, int desiredResult) {
+			this.image = image;
+			this.desiredResult = desiredResult;
+			this.tapes = ThreadLocal.withInitial(()->new Tape(image.length));
+		}
 		
-		for(int a=0; a<10000; a++) {
-			for(int b=0; b<10000; b++) {
-				ArrayList<Integer> copy = new ArrayList<>(tape);
-				copy.set(1, a);
-				copy.set(2, b);
-				execFully(copy);
-				if (copy.get(0).equals(desiredResult)) {
-					System.out.println("Solution found: "+a+", "+b+" >> "+(100*a+b));
+		private class NounRange extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final int from;
+			private final int to;
+			
+			NounRange(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+			
+			@Override
+			protected void compute() {
+				if ((long)from*SEARCH_SIZE > best.get()) return;
+				
+				if (to-from > NOUNS_PER_TASK) {
+					int mid = (from+to) >>> 1;
+					invokeAll(new NounRange(from, mid), new NounRange(mid, to));
 					return;
 				}
+				
+				Tape tape = tapes.get();
+				for(int a=from; a<to; a++) {
+					for(int b=0; b<SEARCH_SIZE; b++) {
+						long pair = (long)a*SEARCH_SIZE + b;
+						if (pair > best.get()) return;
+						
+						if (tape.run(image, a, b)==desiredResult && !tape.crashed()) {
+							best.accumulateAndGet(pair, Math::min);
+							pairsTried.add(b+1);
+							return;
+						}
+					}
+					pairsTried.add(SEARCH_SIZE);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A primitive int version of the List&lt;Integer&gt; tape that exec works on, for running the same
+	 * program over and over without boxing. Grows with zeroes the same way growTape does.
+	 */
+	public static class Tape {
+		private int[] cells;
+		private int length;
+		private boolean crashed = false;
+		
+		public Tape(int capacity) {
+			cells = new int[Math.max(4, capacity)];
+		}
+		
+		/**
+		 * Loads the image, sets the noun and verb, and runs to completion. Returns what's left in cell
+		 * 0. A pair that crashes the machine (bad opcode, negative address) returns 0 and sets
+		 * crashed(), rather than taking the whole search down. Any int can be a real answer, so
+		 * check crashed() before believing one.
+		 */
+		public int run(int[] image, int noun, int verb) {
+			if (cells.length<image.length) cells = new int[image.length];
+			System.arraycopy(image, 0, cells, 0, image.length);
+			length = image.length;
+			crashed = false;
+			set(1, noun);
+			set(2, verb);
+			
+			try {
+				for(int offset=0; ; offset+=4) {
+					int op = get(offset);
+					switch(op) {
+					case 1: // Add
+						set(get(offset+3), get(get(offset+1)) + get(get(offset+2)));
+						break;
+					case 2: // Multiply
+						set(get(offset+3), get(get(offset+1)) * get(get(offset+2)));
+						break;
+					case 99: // Halt
+						return get(0);
+					case -1: // Halt and Catch Fire
+						Arrays.fill(cells, 0, length, -1);
+						return -1;
+					default:
+						crashed = true;
+						return 0;
+					}
+				}
+			} catch (ArrayIndexOutOfBoundsException ex) {
+				crashed = true;
+				return 0;
 			}
-			System.out.println(".");
 		}
 		
+		/** True if the last run crashed instead of halting, in which case what it returned means nothing. */
+		public boolean crashed() {
+			return crashed;
+		}
 		
+		private int get(int address) {
+			if (address>=length) ensureLength(address+1);
+			return cells[address];
+		}
+		
+		private void set(int address, int value) {
+			if (address>=length) ensureLength(address+1);
+			cells[address] = value;
+		}
+		
+		private void ensureLength(int newLength) {
+			if (newLength>cells.length) cells = Arrays.copyOf(cells, Math.max(newLength, cells.length*2));
+			Arrays.fill(cells, length, newLength, 0);
+			length = newLength;
+		}
+	}
+	
+	/* ****************************************************************************************** *
+	 * Symbolic evaluation. Cells hold affine expressions in noun and verb instead of numbers.
+	 * ****************************************************************************************** */
+	
+	/**
+	 * Runs the program once with cells 1 and 2 as unknowns and returns cell 0 as an expression, or
+	 * null if it can't be done. Reading through an unknown address gives an opaque value, which is
+	 * fine as long as it's overwritten before anyone looks at it (the very first instruction does
+	 * exactly this). Writing through an unknown address, executing an unknown opcode, or ending up
+	 * with something opaque in cell 0 means the answer depends on more than arithmetic, and we
+	 * return null so the caller can fall back to searching.
+	 */
+	public static Affine evaluateSymbolically(int[] image) {
+		Affine[] cells = new Affine[Math.max(3, image.length)];
+		for(int i=0; i<cells.length; i++) cells[i] = Affine.constant((i<image.length) ? image[i] : 0);
+		cells[1] = Affine.NOUN;
+		cells[2] = Affine.VERB;
+		
+		for(int offset=0; ; offset+=4) {
+			if (offset+3>=cells.length) cells = growSymbolic(cells, offset+4);
+			if (!cells[offset].isConstant()) return null;
+			
+			int op = cells[offset].constant;
+			switch(op) {
+			case 1:
+			case 2: {
+				Affine aAddr = cells[offset+1];
+				Affine bAddr = cells[offset+2];
+				Affine dstAddr = cells[offset+3];
+				if (!dstAddr.isConstant() || dstAddr.constant<0) return null;
+				
+				Affine a = Affine.OPAQUE;
+				Affine b = Affine.OPAQUE;
+				if (aAddr.isConstant()) {
+					if (aAddr.constant<0) return null;
+					if (aAddr.constant>=cells.length) cells = growSymbolic(cells, aAddr.constant+1);
+					a = cells[aAddr.constant];
+				}
+				if (bAddr.isConstant()) {
+					if (bAddr.constant<0) return null;
+					if (bAddr.constant>=cells.length) cells = growSymbolic(cells, bAddr.constant+1);
+					b = cells[bAddr.constant];
+				}
+				
+				if (dstAddr.constant>=cells.length) cells = growSymbolic(cells, dstAddr.constant+1);
+				cells[dstAddr.constant] = (op==1) ? a.plus(b) : a.times(b);
+				break;
+			}
+			
+			case 99:
+				return cells[0].opaque ? null : cells[0];
+			
+			case -1:
+				return Affine.constant(-1);
+			
+			default:
+				return null;
+			}
+		}
+	}
+	
+	private static Affine[] growSymbolic(Affine[] cells, int newLength) {
+		int oldLength = cells.length;
+		cells = Arrays.copyOf(cells, Math.max(newLength, oldLength*2));
+		Arrays.fill(cells, oldLength, cells.length, Affine.constant(0));
+		return cells;
+	}
+	
+	/**
+	 * constant + nounCoefficient*noun + verbCoefficient*verb, with the same int wraparound the tape
+	 * has, or an opaque value we know nothing about. Multiplying two non-constants gives opaque
+	 * too, since a noun*verb term would need a different solver.
+	 */
+	public static class Affine {
+		public static final Affine NOUN = new Affine(0, 1, 0, false);
+		public static final Affine VERB = new Affine(0, 0, 1, false);
+		public static final Affine OPAQUE = new Affine(0, 0, 0, true);
+		
+		public final int constant;
+		public final int nounCoefficient;
+		public final int verbCoefficient;
+		public final boolean opaque;
+		
+		private Affine(int constant, int nounCoefficient, int verbCoefficient, boolean opaque) {
+			this.constant = constant;
+			this.nounCoefficient = nounCoefficient;
+			this.verbCoefficient = verbCoefficient;
+			this.opaque = opaque;
+		}
+		
+		public static Affine constant(int value) {
+			return new Affine(value, 0, 0, false);
+		}
+		
+		public boolean isConstant() {
+			return !opaque && nounCoefficient==0 && verbCoefficient==0;
+		}
+		
+		public Affine plus(Affine other) {
+			if (opaque || other.opaque) return OPAQUE;
+			return new Affine(constant+other.constant, nounCoefficient+other.nounCoefficient, verbCoefficient+other.verbCoefficient, false);
+		}
+		
+		public Affine times(Affine other) {
+			if (opaque || other.opaque) return OPAQUE;
+			if (isConstant()) return other.scale(constant);
+			if (other.isConstant()) return scale(other.constant);
+			return OPAQUE;
+		}
+		
+		private Affine scale(int k) {
+			return new Affine(constant*k, nounCoefficient*k, verbCoefficient*k, false);
+		}
+		
+		/**
+		 * Finds the lowest noun, then the lowest verb, below SEARCH_SIZE that make this equal to
+		 * target mod 2^32. Returns noun*SEARCH_SIZE+verb like PairSearch does, or Long.MAX_VALUE if
+		 * there's no such pair. That's one modular inverse per noun instead of SEARCH_SIZE runs.
+		 */
+		public long solve(int target) {
+			int shift = Integer.numberOfTrailingZeros(verbCoefficient);
+			int inverse = (verbCoefficient==0) ? 0 : inverseOfOdd(verbCoefficient >> shift);
+			
+			for(int noun=0; noun<SEARCH_SIZE; noun++) {
+				int remainder = target - constant - nounCoefficient*noun;
+				int verb;
+				if (verbCoefficient==0) {
+					if (remainder!=0) continue;
+					verb = 0;
+				} else {
+					//verbCoefficient = odd * 2^shift, so remainder has to be a multiple of 2^shift too
+					if (Integer.numberOfTrailingZeros(remainder)<shift) continue;
+					long modulus = 1L << (32-shift);
+					verb = (int)(((remainder >> shift) * inverse) & (modulus-1));
+					if (verb<0) continue; //Only possible when shift==0 and the solution is above 2^31
+				}
+				if (verb<SEARCH_SIZE) return (long)noun*SEARCH_SIZE + verb;
+			}
+			return Long.MAX_VALUE;
+		}
+		
+		/** Inverse of an odd number mod 2^32, by Newton's method. Each step doubles the correct low bits. */
+		private static int inverseOfOdd(int odd) {
+			int x = odd; //Correct to 3 bits already, since odd*odd == 1 mod 8
+			for(int i=0; i<4; i++) x *= 2 - odd*x;
+			return x;
+		}
+		
+		@Override
+		public String toString() {
+			if (opaque) return "?";
+			return constant+" + "+nounCoefficient+"*noun + "+verbCoefficient+"*verb";
+		}
 	}
 }
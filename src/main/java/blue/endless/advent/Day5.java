@@ -1,12 +1,9 @@
 package blue.endless.advent;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -16,8 +13,7 @@ import java.util.Map;
 public class Day5 {
 	public static void runFromFile(int input) {
 		try {
-			List<String> file = Files.readAllLines(Paths.get("day5.dat"));
-			decodeAndRun(file.get(0), input);
+			run(IntcodeLoader.loadInts(Paths.get("day5.dat")), input);
 			
 		} catch (IOException ex) {
 			ex.printStackTrace();
@@ -25,13 +21,7 @@ public class Day5 {
 	}
 	
 	public static void decodeAndRun(String intcode, int... inputs) {
-		String[] cells = intcode.split(",");
-		int[] memory = new int[cells.length];
-		for(int i=0; i<cells.length; i++) {
-			memory[i] = Integer.parseInt(cells[i].trim());
-		}
-		
-		run(memory, inputs);
+		run(IntcodeLoader.parseInts(intcode), inputs);
 	}
 	
 	public static void run(int[] memory, int... inputs) {
@@ -39,21 +29,20 @@ public class Day5 {
 		ShipComputer computer = new ShipComputer();
 		computer.setMemory(memory);
 		
-		if (inputs.length>0) for(int i: inputs) computer.state.input.add(i);
+		if (inputs.length>0) for(int i: inputs) computer.state.input.push(i);
 		
 		computer.run();
 	}
 	
 	
-	public static class ProgramState {
+	public static class ProgramState implements Day9.Traceable {
 		public int programCounter = 0;
 		public int[] memory = { 99 }; //No program loaded
 		public int addressModes = 0;
 		public boolean halt = false;
 		public String error = "";
-		public String lineDisassembly = "";
-		public List<Integer> input = new ArrayList<>();
-		public List<Integer> output = new ArrayList<>();
+		public IntcodeChannel input = new IntcodeChannel();
+		public IntcodeChannel output = new IntcodeChannel();
 		
 		public void halt() {
 			halt = true;
@@ -113,29 +102,37 @@ public class Day5 {
 		}
 		
 		public String explain(int argNumber) {
-			int mode = addressMode(argNumber);
-			switch(mode) {
-			case 0: //mem
-				int address = memory[programCounter+argNumber+1];
-				return "["+address+"]";
-			case 1: //imm
-				return ""+memory[programCounter+argNumber+1];
-			default:
-				return "?"+mode+"?"+memory[programCounter+argNumber+1];
-			}
+			return Day9.explain(addressModes, argNumber, cell(programCounter+argNumber+1), 0);
+		}
+		
+		/** Day 5 machines never ran side by side, so there was never anything to tell apart. */
+		@Override
+		public String prefix() {
+			return "";
+		}
+		
+		/** Disassembles the instruction at the program counter. Only trace listeners call this, so quiet runs never build the strings. */
+		@Override
+		public String disassemble() {
+			return Day9.disassemble(cell(programCounter), cell(programCounter+1), cell(programCounter+2), cell(programCounter+3), 0);
+		}
+		
+		private int cell(int address) {
+			return (address>=0 && address<memory.length) ? memory[address] : 0;
 		}
 	}
 	
 	public static class ShipComputer {
 		public Map<Integer, Opcode> opcodes = new HashMap<>();
 		public ProgramState state = new ProgramState();
+		/** Called before every instruction if set. Null means no tracing, and no tracing cost. */
+		public Day9.TraceListener<? super ProgramState> tracer = null;
 		
 		public ShipComputer() {
 			opcodes.put(1, (state)->{ //ADD
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				state.write(2, a+b);
-				state.lineDisassembly = "ADD "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				state.programCounter += 4;
 			});
 			
@@ -143,18 +140,15 @@ public class Day5 {
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				state.write(2, a*b);
-				state.lineDisassembly = "MUL "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				state.programCounter += 4;
 			});
 			
 			opcodes.put(3, (state)->{
-				state.lineDisassembly = "IN "+state.explain(0);
-				
 				if (state.input.isEmpty()) {
 					state.error = "No input to read.";
 					state.halt();
 				} else {
-					int input = state.input.remove(0);
+					int input = (int)state.input.poll();
 					state.write(0, input);
 				}
 				
@@ -162,15 +156,13 @@ public class Day5 {
 			});
 			
 			opcodes.put(4, (state)->{
-				state.lineDisassembly = "OUT "+state.explain(0);
 				int out = state.fetch(0);
-				state.output.add(out);
+				state.output.push(out);
 				
 				state.programCounter += 2;
 			});
 			
 			opcodes.put(5, (state)->{
-				state.lineDisassembly = "JNZ "+state.explain(0)+" "+state.explain(1);
 				int nz = state.fetch(0);
 				int addr = state.fetch(1);
 				if (nz!=0) {
@@ -181,7 +173,6 @@ public class Day5 {
 			});
 			
 			opcodes.put(6, (state)->{
-				state.lineDisassembly = "JZ "+state.explain(0)+" "+state.explain(1);
 				int z = state.fetch(0);
 				int addr = state.fetch(1);
 				if (z==0) {
@@ -192,7 +183,6 @@ public class Day5 {
 			});
 			
 			opcodes.put(7, (state)->{
-				state.lineDisassembly = "LESS "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				
@@ -204,7 +194,6 @@ public class Day5 {
 			});
 			
 			opcodes.put(8, (state)->{
-				state.lineDisassembly = "EQUAL "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				
@@ -216,7 +205,6 @@ public class Day5 {
 			});
 			
 			opcodes.put(99, (state)->{
-				state.lineDisassembly = "HLT";
 				state.programCounter++;
 				state.halt();
 			});
@@ -226,26 +214,41 @@ public class Day5 {
 			state.memory = memory;
 		}
 		
+		/** Gets the computer ready to run program again from the top, reusing its memory array if it's the right size. */
+		public void reset(int[] program) {
+			if (state.memory.length==program.length) {
+				System.arraycopy(program, 0, state.memory, 0, program.length);
+			} else {
+				state.memory = Arrays.copyOf(program, program.length);
+			}
+			state.programCounter = 0;
+			state.addressModes = 0;
+			state.halt = false;
+			state.error = "";
+			state.input.clear();
+			state.output.clear();
+		}
+		
 		public void run() {
 			run(true);
 		}
 		
 		public void run(boolean verbose) {
+			Day9.TraceListener<? super ProgramState> tracer = (verbose && this.tracer==null) ? Day9.PRINT_TRACE : this.tracer;
 			while(!state.isHalted()) {
+				if (tracer!=null) tracer.trace(state);
+				
 				int opcodeAndMode = state.memory[state.programCounter];
 				int opcodeNum = opcodeAndMode % 100;
 				
 				Opcode opcode = opcodes.get(opcodeNum);
 				if (opcode==null) {
-					state.lineDisassembly = "ERROR";
 					state.error = "Unknown opcode "+opcodeNum;
 					state.halt();
 				} else {
 					state.addressModes = opcodeAndMode / 100;
 					opcode.run(state);
 				}
-				
-				if (verbose) System.out.println(state.lineDisassembly);
 			}
 			
 			if (!state.error.isEmpty()) System.out.println("Error: "+state.error);
@@ -1,20 +1,23 @@
 package blue.endless.advent;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
 
 public class Day7 {
 	public static Day5.ShipComputer[] createAmplifierBank() {
+		return createAmplifierBank(5);
+	}
+	
+	public static Day5.ShipComputer[] createAmplifierBank(int size) {
 		
-		Day5.ShipComputer[] amplifierBank = new Day5.ShipComputer[5]; // A,B,C,D,E will be 0,1,2,3,4 respectively
+		Day5.ShipComputer[] amplifierBank = new Day5.ShipComputer[size]; // A,B,C,D,E will be 0,1,2,3,4 respectively
 		Day5.ShipComputer last = null;
 		for(int i=0; i<amplifierBank.length; i++) {
 			Day5.ShipComputer cur = new Day5.ShipComputer();
@@ -27,12 +30,7 @@ public class Day7 {
 	}
 	
 	public static int[] decodeMemory(String s) {
-		String[] cells = s.split(",");
-		int[] memory = new int[cells.length];
-		for(int i=0; i<cells.length; i++) {
-			memory[i] = Integer.parseInt(cells[i].trim());
-		}
-		return memory;
+		return IntcodeLoader.parseInts(s);
 	}
 	
 	public static int run(String program, int... settings) {
@@ -48,68 +46,177 @@ public class Day7 {
 	public static int run(int[] program, Day5.ShipComputer[] amplifierBank, int... settings) {
 		if (settings.length<amplifierBank.length) settings = Arrays.copyOf(settings, amplifierBank.length);
 		
-		amplifierBank[0].state.input.add(0);
+		int thrusterOutput = thrust(program, amplifierBank, settings);
+		
+		System.out.println("Thruster output from "+Arrays.toString(settings)+": "+thrusterOutput);
+		return thrusterOutput;
+	}
+	
+	/** Resets the bank, runs it once with the given settings, and returns what comes out the end. Doesn't print anything. */
+	public static int thrust(int[] program, Day5.ShipComputer[] amplifierBank, int[] settings) {
+		for(Day5.ShipComputer amplifier : amplifierBank) amplifier.reset(program);
+		
+		amplifierBank[0].state.input.push(0);
 		for(int i=0; i<amplifierBank.length; i++) {
-			amplifierBank[i].state.memory = Arrays.copyOf(program, program.length);
-			amplifierBank[i].state.input.add(0, settings[i]);
+			amplifierBank[i].state.input.pushFirst(settings[i]);
 			amplifierBank[i].run(false);
 		}
 		
-		int thrusterOutput = amplifierBank[amplifierBank.length-1].state.output.get(0);
-		
-		System.out.println("Thruster output from "+Arrays.toString(settings)+": "+thrusterOutput);
-		return thrusterOutput;
+		return (int)amplifierBank[amplifierBank.length-1].state.output.peek();
 	}
 	
 	
 	/* now that we can run singles and get the input back from them, we want to brute-force the list
-	 * of combinations. I'm going to do this with an ugly nested loop.
+	 * of combinations. This used to be five nested loops and a duplicate check; now it's Heap's
+	 * algorithm, so every arrangement we look at is a real one.
 	 */
 	
 	public static int bestThrust(String programString) {
-		int[] program = decodeMemory(programString);
-		int[] bestSettings = null;
-		int bestThrust = Integer.MIN_VALUE;
-		
-		for(int a=0; a<=4; a++) {
-			for(int b=0; b<=4; b++) {
-				for(int c=0; c<=4; c++) {
-					for(int d=0; d<=4; d++) {
-						for(int e=0; e<=4; e++) {
-							
-							int[] settings = {a, b, c, d, e};
-							if (hasDuplicates(settings)) continue;
-							
-							int thrust = run(program, settings);
-							if (thrust>bestThrust) {
-								bestThrust = thrust;
-								bestSettings = settings;
-							}
-							
-						}
-					}
-				}
+		return bestThrust(decodeMemory(programString), 0, 1, 2, 3, 4);
+	}
+	
+	/** One amplifier per phase, so this works for banks of any size. */
+	public static int bestThrust(int[] program, int... phases) {
+		Best best = bestThrustByPrefix(program, phases);
+		
+		System.out.println("Best thrust was for settings "+Arrays.toString(best.settings)+": "+best.thrust);
+		return best.thrust;
+	}
+	
+	/**
+	 * Same answer as running every permutation through a bank, with a lot less running. Amplifier
+	 * i's output only depends on the phases of amplifiers 0 through i, so we walk the tree of
+	 * prefixes instead: run one stage, then try every remaining phase for the next stage on top of
+	 * that output. Each prefix gets run exactly once, which is n!/0! + n!/1! + ... + n!/(n-1)!
+	 * stages, about e*n!, where running whole banks costs n*n!. The first level is split across
+	 * threads like searchPermutations does.
+	 */
+	public static Best bestThrustByPrefix(int[] program, int... phases) {
+		return IntStream.range(0, phases.length).parallel().mapToObj((first)->{
+			PrefixWalk walk = new PrefixWalk(program, phases);
+			walk.visit(0, first, 0);
+			return walk.best;
+		}).reduce(new Best(), Best::merge);
+	}
+	
+	/** One thread's share of bestThrustByPrefix. A single computer does every stage, since only one runs at a time. */
+	private static class PrefixWalk {
+		private final int[] program;
+		private final int[] phases;
+		private final int[] settings;
+		private final boolean[] used;
+		private final Day5.ShipComputer stage = new Day5.ShipComputer();
+		private final Best best = new Best();
+		
+		PrefixWalk(int[] program, int[] phases) {
+			this.program = program;
+			this.phases = phases;
+			this.settings = new int[phases.length];
+			this.used = new boolean[phases.length];
+		}
+		
+		/** Runs amplifier number depth with phases[phase] on the signal, then everything that can come after it. */
+		void visit(int depth, int phase, int signal) {
+			stage.reset(program);
+			stage.state.input.push(phases[phase]);
+			stage.state.input.push(signal);
+			stage.run(false);
+			int output = (int)stage.state.output.peek();
+			
+			settings[depth] = phases[phase];
+			if (depth==phases.length-1) {
+				best.offer(output, settings);
+				return;
 			}
+			
+			used[phase] = true;
+			for(int next=0; next<phases.length; next++) {
+				if (!used[next]) visit(depth+1, next, output);
+			}
+			used[phase] = false;
 		}
+	}
+	
+	/**
+	 * Evaluates every ordering of phases and returns the one with the highest thrust. Work is split
+	 * up by which phase goes first, and each thread asks evaluators for one evaluator the first
+	 * time it picks up work and keeps it, so an evaluator can hang onto a bank and reuse it for
+	 * every run. The array an evaluator is handed gets scrambled right after, so don't keep it.
+	 * 
+	 * <p>Ties go to whichever settings sort first, so the answer doesn't depend on thread timing.
+	 */
+	public static Best searchPermutations(int[] phases, Supplier<ToIntFunction<int[]>> evaluators) {
+		ThreadLocal<ToIntFunction<int[]>> perThread = ThreadLocal.withInitial(evaluators);
 		
-		System.out.println("Best thrust was for settings "+Arrays.toString(bestSettings)+": "+bestThrust);
-		return bestThrust;
+		return IntStream.range(0, phases.length).parallel().mapToObj((first)->{
+			int[] settings = phases.clone();
+			settings[first] = phases[0];
+			settings[0] = phases[first];
+			
+			ToIntFunction<int[]> evaluator = perThread.get();
+			Best best = new Best();
+			forEachPermutation(settings, 1, (it)->best.offer(evaluator.applyAsInt(it), it));
+			return best;
+		}).reduce(new Best(), Best::merge);
 	}
 	
-	/** This has to be the worst way to obtain this information. */
-	public static boolean hasDuplicates(int[] set) {
-		Set<Integer> elements = new HashSet<>();
-		for(int i : set) {
-			if (elements.contains(i)) return true;
-			elements.add(i);
+	/**
+	 * Heap's algorithm, done without recursion. Calls visitor once for every arrangement of
+	 * values[from...], leaving values[0...from) alone. Each arrangement is one swap away from the
+	 * last, and values ends up in some arrangement of the original order when this returns.
+	 */
+	public static void forEachPermutation(int[] values, int from, Consumer<int[]> visitor) {
+		int n = values.length-from;
+		int[] counters = new int[Math.max(0, n)];
+		
+		visitor.accept(values);
+		int i = 1;
+		while(i<n) {
+			if (counters[i]<i) {
+				int swapWith = ((i & 1)==0) ? from : from+counters[i];
+				int tmp = values[swapWith];
+				values[swapWith] = values[from+i];
+				values[from+i] = tmp;
+				
+				visitor.accept(values);
+				counters[i]++;
+				i = 1;
+			} else {
+				counters[i] = 0;
+				i++;
+			}
+		}
+	}
+	
+	/** The best settings seen so far in a permutation search, and their thrust. */
+	public static class Best {
+		public int thrust = Integer.MIN_VALUE;
+		public int[] settings = null;
+		
+		public void offer(int thrust, int[] settings) {
+			if (thrust>this.thrust || (thrust==this.thrust && comesBefore(settings, this.settings))) {
+				this.thrust = thrust;
+				this.settings = settings.clone();
+			}
+		}
+		
+		public Best merge(Best other) {
+			if (other.settings!=null) offer(other.thrust, other.settings);
+			return this;
+		}
+		
+		private static boolean comesBefore(int[] a, int[] b) {
+			if (b==null) return true;
+			for(int i=0; i<a.length; i++) {
+				if (a[i]!=b[i]) return a[i]<b[i];
+			}
+			return false;
 		}
-		return false;
 	}
 	
 	public static void runFromFile() {
 		try {
-			List<String> file = Files.readAllLines(Paths.get("day7.dat"));
-			bestThrust(file.get(0));
+			bestThrust(IntcodeLoader.loadInts(Paths.get("day7.dat")), 0, 1, 2, 3, 4);
 			
 		} catch (IOException ex) {
 			ex.printStackTrace();
@@ -122,16 +229,15 @@ public class Day7 {
 	 * state, and can run one tick of code
 	 */
 	
-	public static class ProgramState {
+	public static class ProgramState implements Day9.Traceable {
 		public String prefix = "";
 		public int programCounter = 0;
 		public int[] memory = { 99 }; //No program loaded
 		public int addressModes = 0;
 		public boolean halt = false;
 		public String error = "";
-		public String lineDisassembly = "";
-		public List<Integer> input = new ArrayList<>();
-		public List<Integer> output = new ArrayList<>();
+		public IntcodeChannel input = new IntcodeChannel();
+		public IntcodeChannel output = new IntcodeChannel();
 		public boolean wait = false; //True if blocking on input
 		
 		public void halt() {
@@ -196,29 +302,36 @@ public class Day7 {
 		}
 		
 		public String explain(int argNumber) {
-			int mode = addressMode(argNumber);
-			switch(mode) {
-			case 0: //mem
-				int address = memory[programCounter+argNumber+1];
-				return "["+address+"]";
-			case 1: //imm
-				return ""+memory[programCounter+argNumber+1];
-			default:
-				return "?"+mode+"?"+memory[programCounter+argNumber+1];
-			}
+			return Day9.explain(addressModes, argNumber, cell(programCounter+argNumber+1), 0);
+		}
+		
+		@Override
+		public String prefix() {
+			return prefix;
+		}
+		
+		/** Disassembles the instruction at the program counter. Only trace listeners call this, so quiet runs never build the strings. */
+		@Override
+		public String disassemble() {
+			return Day9.disassemble(cell(programCounter), cell(programCounter+1), cell(programCounter+2), cell(programCounter+3), 0);
+		}
+		
+		private int cell(int address) {
+			return (address>=0 && address<memory.length) ? memory[address] : 0;
 		}
 	}
 	
 	public static class ShipComputer {
 		public Map<Integer, Opcode> opcodes = new HashMap<>();
 		public ProgramState state = new ProgramState();
+		/** Called before every instruction if set. Null means no tracing, and no tracing cost. */
+		public Day9.TraceListener<? super ProgramState> tracer = null;
 		
 		public ShipComputer() {
 			opcodes.put(1, (state)->{ //ADD
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				state.write(2, a+b);
-				state.lineDisassembly = "ADD "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				state.programCounter += 4;
 			});
 			
@@ -226,33 +339,28 @@ public class Day7 {
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				state.write(2, a*b);
-				state.lineDisassembly = "MUL "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				state.programCounter += 4;
 			});
 			
 			opcodes.put(3, (state)->{
-				state.lineDisassembly = "IN  "+state.explain(0);
-				
 				if (state.input.isEmpty()) {
 					state.wait = true;
 				} else {
 					state.wait = false;
-					int input = state.input.remove(0);
+					int input = (int)state.input.poll();
 					state.write(0, input);
 					state.programCounter += 2;
 				}
 			});
 			
 			opcodes.put(4, (state)->{
-				state.lineDisassembly = "OUT "+state.explain(0);
 				int out = state.fetch(0);
-				state.output.add(out);
+				state.output.push(out);
 				
 				state.programCounter += 2;
 			});
 			
 			opcodes.put(5, (state)->{
-				state.lineDisassembly = "JNZ "+state.explain(0)+" "+state.explain(1);
 				int nz = state.fetch(0);
 				int addr = state.fetch(1);
 				if (nz!=0) {
@@ -263,7 +371,6 @@ public class Day7 {
 			});
 			
 			opcodes.put(6, (state)->{
-				state.lineDisassembly = "JZ  "+state.explain(0)+" "+state.explain(1);
 				int z = state.fetch(0);
 				int addr = state.fetch(1);
 				if (z==0) {
@@ -274,7 +381,6 @@ public class Day7 {
 			});
 			
 			opcodes.put(7, (state)->{
-				state.lineDisassembly = "LES "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				
@@ -286,7 +392,6 @@ public class Day7 {
 			});
 			
 			opcodes.put(8, (state)->{
-				state.lineDisassembly = "EQU "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				int a = state.fetch(0);
 				int b = state.fetch(1);
 				
@@ -298,13 +403,11 @@ public class Day7 {
 			});
 			
 			opcodes.put(99, (state)->{
-				state.lineDisassembly = "HLT";
 				state.programCounter++;
 				state.halt();
 			});
 			
 			opcodes.put(-1, (state)->{
-				state.lineDisassembly = "HCF";
 				state.programCounter = 0;
 				state.input.clear();
 				state.output.clear();
@@ -318,33 +421,63 @@ public class Day7 {
 			state.memory = memory;
 		}
 		
+		/** Gets the computer ready to run program again from the top, reusing its memory array if it's the right size. */
+		public void reset(int[] program) {
+			if (state.memory.length==program.length) {
+				System.arraycopy(program, 0, state.memory, 0, program.length);
+			} else {
+				state.memory = Arrays.copyOf(program, program.length);
+			}
+			state.programCounter = 0;
+			state.addressModes = 0;
+			state.halt = false;
+			state.wait = false;
+			state.error = "";
+			state.input.clear();
+			state.output.clear();
+		}
+		
 		public void runUntilYield(boolean verbose) {
-			if (state.isHalted() || state.waits()) return;
-			while(!state.isHalted() && !state.waits()) step(verbose);
+			runFor(Long.MAX_VALUE, verbose);
+		}
+		
+		/**
+		 * runUntilYield, but stops after budget instructions even if the program's still going, so
+		 * one amp stuck in a loop can't hang the whole bank. Returns how many instructions ran; if
+		 * the state isn't halted or waiting afterwards, it ran out of budget.
+		 */
+		public long runFor(long budget, boolean verbose) {
+			if (state.isHalted() || state.waits()) return 0;
+			long executed = 0;
+			while(!state.isHalted() && !state.waits() && executed<budget) {
+				step(verbose);
+				executed++;
+			}
 			
 			if (!state.error.isEmpty()) System.out.println(state.prefix+"> "+"Error: "+state.error);
 			if (verbose && !state.output.isEmpty()) System.out.println(state.prefix+"> "+"output: "+state.output);
 			if (verbose) System.out.println(state.prefix+"> "+"Final memory state: "+Arrays.toString(state.memory));
+			return executed;
 		}
 		
 		public void step(boolean verbose) {
 			if (state.isHalted()) return;
 			if (state.wait && state.input.isEmpty()) return;
 			
+			if (verbose) Day9.PRINT_TRACE.trace(state);
+			if (tracer!=null) tracer.trace(state);
+			
 			int opcodeAndMode = state.memory[state.programCounter];
 			int opcodeNum = opcodeAndMode % 100;
-				
+			
 			Opcode opcode = opcodes.get(opcodeNum);
 			if (opcode==null) {
-				state.lineDisassembly = "ERROR";
 				state.error = "Unknown opcode "+opcodeNum;
 				state.halt();
 			} else {
 				state.addressModes = opcodeAndMode / 100;
 				opcode.run(state);
 			}
-			
-			if (verbose) System.out.println(state.prefix+"> "+state.lineDisassembly);
 		}
 	}
 	
@@ -358,8 +491,12 @@ public class Day7 {
 	 * ****************************************************************************************** */
 	
 	public static ShipComputer[] createResonantBank() {
+		return createResonantBank(5);
+	}
+	
+	public static ShipComputer[] createResonantBank(int size) {
 		
-		ShipComputer[] amplifierBank = new ShipComputer[5]; // A,B,C,D,E will be 0,1,2,3,4 respectively
+		ShipComputer[] amplifierBank = new ShipComputer[size]; // A,B,C,D,E will be 0,1,2,3,4 respectively
 		ShipComputer last = null;
 		for(int i=0; i<amplifierBank.length; i++) {
 			ShipComputer cur = new ShipComputer();
@@ -372,31 +509,45 @@ public class Day7 {
 		return amplifierBank;
 	}
 	
+	/** How many instructions a resonant bank gets, between all its amps, before we decide it's cycling endlessly */
+	public static final long MAX_RESONANT_INSTRUCTIONS = 10_000_000L;
+	
 	public static int runResonantBank(int[] program, ShipComputer[] amplifierBank, int... settings) {
+		return runResonantBank(program, amplifierBank, true, settings);
+	}
+	
+	public static int runResonantBank(int[] program, ShipComputer[] amplifierBank, boolean verbose, int... settings) {
 		if (settings.length<amplifierBank.length) settings = Arrays.copyOf(settings, amplifierBank.length);
 		
 		//Because the setting is the first input to be read, we can buffer those inputs before we begin.
+		//Each amp's input is the previous amp's output, so reset them all before pushing anything.
+		for(ShipComputer compy : amplifierBank) compy.reset(program);
 		for(int i=0; i<amplifierBank.length; i++) {
-			amplifierBank[i].state.input.add(settings[i]);
-			amplifierBank[i].state.memory = Arrays.copyOf(program, program.length);
+			amplifierBank[i].state.input.push(settings[i]);
 		}
-		amplifierBank[0].state.input.add(0); //Initial thrust input
+		amplifierBank[0].state.input.push(0); //Initial thrust input
 		
-		//Run till success or failure. TODO: Solve the halting problem.
-		int iterations = 0;
-		while(!allHalted(amplifierBank) && !deadlocked(amplifierBank) && iterations<10000) {
-			for(ShipComputer compy : amplifierBank) compy.runUntilYield(true);
-			iterations++;
+		//Run till success or failure. We still haven't solved the halting problem, but with a budget,
+		//an amp that never yields can't keep the others from noticing. A round where nobody runs
+		//anything is stuck too: some amps halted, and the rest are waiting on input that won't come.
+		long budget = MAX_RESONANT_INSTRUCTIONS;
+		while(!allHalted(amplifierBank) && !deadlocked(amplifierBank) && budget>0) {
+			long round = 0;
+			for(ShipComputer compy : amplifierBank) {
+				if (round<budget) round += compy.runFor(budget-round, verbose);
+			}
+			if (round==0) break;
+			budget -= round;
 		}
-		if (iterations>=10000) {
-			System.out.println("Cycling endlessly: ");
+		if (!allHalted(amplifierBank) && !deadlocked(amplifierBank)) {
+			if (verbose) System.out.println("Cycling endlessly: ");
 			return -1;
 		}
 		
-		List<Integer> finalOutput = amplifierBank[amplifierBank.length-1].state.output;
+		IntcodeChannel finalOutput = amplifierBank[amplifierBank.length-1].state.output;
 		if (finalOutput.size()<1) return -1;
-		System.out.println("Final output for settings "+Arrays.toString(settings)+": "+finalOutput.get(0));
-		return finalOutput.get(0);
+		if (verbose) System.out.println("Final output for settings "+Arrays.toString(settings)+": "+finalOutput.peek());
+		return (int)finalOutput.peek();
 	}
 	
 	/** Returns true if all computers in this bank have halted. */
@@ -416,39 +567,110 @@ public class Day7 {
 	}
 	
 	public static int bestResonantThrust(String programString) {
-		int[] program = decodeMemory(programString);
-		int[] bestSettings = null;
-		int bestThrust = Integer.MIN_VALUE;
-		
-		for(int a=5; a<=9; a++) {
-			for(int b=5; b<=9; b++) {
-				for(int c=5; c<=9; c++) {
-					for(int d=5; d<=9; d++) {
-						for(int e=5; e<=9; e++) {
-							
-							int[] settings = {a, b, c, d, e};
-							if (hasDuplicates(settings)) continue;
-							
-							int thrust = runResonantBank(program, createResonantBank(), settings);
-							if (thrust>bestThrust) {
-								bestThrust = thrust;
-								bestSettings = settings;
-							}
-							
-						}
-					}
+		return bestResonantThrust(decodeMemory(programString), 5, 6, 7, 8, 9);
+	}
+	
+	public static int bestResonantThrust(int[] program, int... phases) {
+		Best best = searchPermutations(phases, ()->{
+			ShipComputer[] bank = createResonantBank(phases.length);
+			return (settings)->runResonantBank(program, bank, false, settings);
+		});
+		
+		System.out.println("Best thrust was for settings "+Arrays.toString(best.settings)+": "+best.thrust);
+		return best.thrust;
+	}
+	
+	/* ****************************************************************************************** *
+	 * Resonance, but for real this time: every amplifier gets its own thread, and they talk over
+	 * blocking channels. No round-robin, no iteration cap.
+	 * ****************************************************************************************** */
+	
+	/** How many signals can be in flight between two amplifiers before the sender has to wait. */
+	public static final int CONCURRENT_CHANNEL_CAPACITY = 16;
+	
+	/**
+	 * Builds a ring of amplifiers joined by BlockingIntcodeChannels from one Group, so the group
+	 * can tell when they've all stopped.
+	 */
+	public static ShipComputer[] createConcurrentBank(int size, BlockingIntcodeChannel.Group group) {
+		ShipComputer[] amplifierBank = new ShipComputer[size];
+		for(int i=0; i<size; i++) {
+			amplifierBank[i] = new ShipComputer();
+			amplifierBank[i].state.input = new BlockingIntcodeChannel(group, CONCURRENT_CHANNEL_CAPACITY);
+		}
+		for(int i=0; i<size; i++) {
+			amplifierBank[i].state.output = amplifierBank[(i+1) % size].state.input;
+		}
+		return amplifierBank;
+	}
+	
+	/**
+	 * Runs a resonant loop with one thread per amplifier. Each thread runs its machine until it
+	 * needs input, then sleeps on its input channel until the previous amplifier sends something.
+	 * Returns the last signal into the thrusters, or -1 if the loop deadlocked.
+	 */
+	public static int runResonantConcurrently(int[] program, int... settings) {
+		BlockingIntcodeChannel.Group group = new BlockingIntcodeChannel.Group(settings.length);
+		ShipComputer[] amplifierBank = createConcurrentBank(settings.length, group);
+		
+		for(ShipComputer amplifier : amplifierBank) amplifier.reset(program);
+		for(int i=0; i<amplifierBank.length; i++) {
+			amplifierBank[i].state.input.push(settings[i]);
+		}
+		amplifierBank[0].state.input.push(0); //Initial thrust input
+		
+		Thread[] threads = new Thread[amplifierBank.length];
+		for(int i=0; i<amplifierBank.length; i++) {
+			ShipComputer amplifier = amplifierBank[i];
+			threads[i] = new Thread(()->runAmplifier(amplifier), "Amplifier "+(char)('A'+i));
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		
+		try {
+			for(Thread thread : threads) thread.join();
+		} catch (InterruptedException ex) {
+			for(Thread thread : threads) thread.interrupt();
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		
+		if (group.isDeadlocked()) return -1;
+		IntcodeChannel finalOutput = amplifierBank[0].state.input; //Which is where the last amp's output ends up
+		if (finalOutput.isEmpty()) return -1;
+		return (int)finalOutput.peek();
+	}
+	
+	private static void runAmplifier(ShipComputer amplifier) {
+		BlockingIntcodeChannel input = (BlockingIntcodeChannel)amplifier.state.input;
+		try {
+			while(true) {
+				amplifier.runUntilYield(false);
+				if (amplifier.state.isHalted()) {
+					input.readerHalted();
+					return;
 				}
+				if (!input.awaitInput()) return; //Deadlocked
 			}
+		} catch (InterruptedException ex) {
+			//Somebody gave up on us, so just stop
 		}
+	}
+	
+	public static int bestConcurrentResonantThrust(int[] program, int... phases) {
+		Best best = searchPermutations(phases, ()->(settings)->runResonantConcurrently(program, settings));
 		
-		System.out.println("Best thrust was for settings "+Arrays.toString(bestSettings)+": "+bestThrust);
-		return bestThrust;
+		System.out.println("Best thrust was for settings "+Arrays.toString(best.settings)+": "+best.thrust);
+		return best.thrust;
+	}
+	
+	public static void runConcurrentResonantFromFile() {
+		bestConcurrentResonantThrust(decodeMemory(AdventOfCode.loadFile("day7.dat").get(0)), 5, 6, 7, 8, 9);
 	}
 	
 	public static void runResonantFromFile() {
 		try {
-			List<String> file = Files.readAllLines(Paths.get("day7.dat"));
-			bestResonantThrust(file.get(0));
+			bestResonantThrust(IntcodeLoader.loadInts(Paths.get("day7.dat")), 5, 6, 7, 8, 9);
 			
 		} catch (IOException ex) {
 			ex.printStackTrace();
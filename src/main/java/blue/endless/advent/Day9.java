@@ -1,30 +1,51 @@
 package blue.endless.advent;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class Day9 {
 	
 	/** Okay, let's get down to it. We need a better incode computer */
 	
-	public static class ProgramState {
+	public static class ProgramState implements Traceable {
 		public String prefix = "";
 		public long programCounter = 0;
 		public long baseAddress = 0;
-		public long[] memory = { 99 }; //No program loaded
+		public IntcodeMemory memory = IntcodeMemory.of(new long[] { 99 }); //No program loaded
 		public long addressModes = 0;
 		public boolean halt = false;
 		public String error = "";
-		public String lineDisassembly = "";
-		public List<Long> input = new ArrayList<>();
-		public List<Long> output = new ArrayList<>();
+		public IntcodeChannel input = new IntcodeChannel();
+		public IntcodeChannel output = new IntcodeChannel();
 		public boolean wait = false; //True if blocking on input
+		/** If set, IN reads from this instead of input. For drivers that are really hardware, like the hull camera. */
+		public InputDevice inputDevice = null;
+		/** If set, OUT writes here instead of output. */
+		public OutputDevice outputDevice = null;
+		
+		public static final int DECODED = 1 << 20;
+		public static final int UNDECODABLE = -1;
+		/** Decoded instructions carry a fusion kind up here when they start an idiom runFast can do in one go. */
+		public static final int FUSION_SHIFT = 21;
+		public static final int FUSED_INCREMENT = 1;
+		public static final int FUSED_COMPARE_BRANCH = 2;
+		public static final int FUSED_ADR_STORE = 3;
+		/** The longest span of cells a fused decode depends on (compare plus branch) */
+		public static final int MAX_FUSED_LENGTH = 7;
+		public static final int MAX_DECODE_CACHE = 1 << 20;
+		private int[] decodeCache = null;
+		private IntcodeMemory decodeFor = null;
+		
+		/** The image resetTo last forked our memory from, if it was resetTo that put it there */
+		private IntcodeMemory resetImage = null;
+		
+		/** Cells covered by a compiled block (see IntcodeCompiler). Null if nothing's compiled. */
+		public boolean[] compiledCode = null;
+		/** Set when a write lands on compiled code. Compiled blocks bail out to the interpreter when they see this. */
+		public boolean codeModified = false;
 		
 		public void halt() {
 			halt = true;
@@ -35,7 +56,73 @@ public class Day9 {
 		}
 		
 		public boolean waits() {
-			return (wait && input.isEmpty());
+			return (wait && in().isEmpty());
+		}
+		
+		/** Where IN reads from: the input device if there is one, otherwise the input channel. */
+		public InputDevice in() {
+			return (inputDevice!=null) ? inputDevice : input;
+		}
+		
+		/** Where OUT writes to: the output device if there is one, otherwise the output channel. */
+		public OutputDevice out() {
+			return (outputDevice!=null) ? outputDevice : output;
+		}
+		
+		/**
+		 * Copies this state. Memory is forked copy-on-write, so this costs a page directory and two
+		 * channels rather than the whole address space. Decoded instructions and compiled code are
+		 * left behind; the copy rebuilds whatever it actually runs.
+		 */
+		public ProgramState copy() {
+			ProgramState result = new ProgramState();
+			result.prefix = prefix;
+			result.programCounter = programCounter;
+			result.baseAddress = baseAddress;
+			result.memory = memory.fork();
+			result.addressModes = addressModes;
+			result.halt = halt;
+			result.error = error;
+			result.input = input.copy();
+			result.output = output.copy();
+			result.wait = wait;
+			result.inputDevice = inputDevice;
+			result.outputDevice = outputDevice;
+			return result;
+		}
+		
+		/**
+		 * Starts a fresh run of image in this state: registers, flags and channels go back to how a
+		 * new ProgramState has them, and memory becomes a copy-on-write fork of image. Nothing may
+		 * write to image itself after this, or every fork of it sees the change.
+		 * 
+		 * <p>Resetting to the same image again doesn't fork at all: memory gets reverted in place
+		 * (see IntcodeMemory.revertTo), and the decode cache is kept except for instructions over
+		 * cells the last run actually changed. Programs mostly keep their variables in the same
+		 * page as their code, so that's a handful of entries, not the page. Compiled blocks are kept
+		 * the same way; if the revert touched one, codeModified makes the compiler recheck it.
+		 */
+		public void resetTo(IntcodeMemory image) {
+			boolean reverted = resetImage==image && decodeFor==memory && decodeCache!=null
+					&& memory.revertTo(image, this::invalidateDecoded);
+			if (!reverted) {
+				memory = image.fork();
+				invalidateDecodeCache();
+				//New memory, so the compiler starts over on its next lookup. Reverting in place keeps its
+				//blocks, and with them compiledCode and any codeModified the revert just set.
+				compiledCode = null;
+				codeModified = false;
+			}
+			resetImage = image;
+			
+			programCounter = 0;
+			baseAddress = 0;
+			addressModes = 0;
+			halt = false;
+			error = "";
+			wait = false;
+			input.clear();
+			output.clear();
 		}
 		
 		private int addressMode(int argNumber) {
@@ -48,30 +135,19 @@ public class Day9 {
 		}
 		
 		public long fetch(int argNumber) {
-			int mode = addressMode(argNumber);
-			
+			return load(addressMode(argNumber), argNumber);
+		}
+		
+		/** Reads argument argNumber of the current instruction using an already-decoded address mode */
+		public long load(int mode, int argNumber) {
 			switch(mode) {
 			case 0: //mem
-				long address = memory[(int)(programCounter+argNumber+1)];
-				if (address>=memory.length) {
-					error = "Requested address exceeded memory size setting ("+address+" > "+memory.length+")";
-					halt();
-					return 0L;
-				}
-				if (address<0) return 0;
-				return memory[(int)address];
+				return loadAbsolute(memory.read(programCounter+argNumber+1));
 			case 1: //imm
-				long constant = memory[(int)(programCounter+argNumber+1)];
+				long constant = memory.read(programCounter+argNumber+1);
 				return constant;
 			case 2: //rel
-				long offset = memory[(int)(programCounter+argNumber+1)];
-				long phys = baseAddress+offset;
-				if (phys>=memory.length) {
-					error = "Requested address exceeds memory size setting ("+baseAddress+" + "+offset+" > "+memory.length+")";
-					halt();
-					return 0L;
-				}
-				return memory[(int)phys];
+				return loadRelative(memory.read(programCounter+argNumber+1));
 			default:
 				error = "Unknown address mode "+mode;
 				halt();
@@ -79,33 +155,37 @@ public class Day9 {
 			}
 		}
 		
+		public long loadAbsolute(long address) {
+			if (address<0) return 0;
+			return memory.read(address);
+		}
+		
+		public long loadRelative(long offset) {
+			long phys = baseAddress+offset;
+			if (phys<0) {
+				error = "Requested address is negative ("+baseAddress+" + "+offset+")";
+				halt();
+				return 0L;
+			}
+			return memory.read(phys);
+		}
+		
 		public void write(int argNumber, long value) {
-			int mode = addressMode(argNumber);
-			
+			store(addressMode(argNumber), argNumber, value);
+		}
+		
+		/** Writes to argument argNumber of the current instruction using an already-decoded address mode */
+		public void store(int mode, int argNumber, long value) {
 			switch(mode) {
 			case 0: //mem
-				long address = memory[(int)(programCounter+argNumber+1)];
-				if (address>=memory.length) {
-					error = "Requested address exceeded memory size setting ("+address+" > "+memory.length+")";
-					halt();
-					return;
-				}
-				if (address<0) return;
-				memory[(int)address] = value;
+				storeAbsolute(memory.read(programCounter+argNumber+1), value);
 				return;
 			case 1: //imm
 				error = "Cannot write to immediate value";
 				halt();
 				return;
 			case 2: //rel
-				long offset = memory[(int)(programCounter+argNumber+1)];
-				long phys = baseAddress+offset;
-				if (phys>=memory.length) {
-					error = "Requested address exceeds memory size setting ("+baseAddress+" + "+offset+" > "+memory.length+")";
-					halt();
-					return;
-				}
-				memory[(int)phys] = value;
+				storeRelative(memory.read(programCounter+argNumber+1), value);
 				return;
 			default:
 				error = "Unknown address mode "+mode;
@@ -114,33 +194,275 @@ public class Day9 {
 			}
 		}
 		
-		public String explain(int argNumber) {
-			int mode = addressMode(argNumber);
-			switch(mode) {
-			case 0: //mem
-				long address = memory[(int)(programCounter+argNumber+1)];
-				return "["+address+"]";
-			case 1: //imm
-				return ""+memory[(int)(programCounter+argNumber+1)];
-			case 2: //rel
-				long offset = memory[(int)(programCounter+argNumber+1)];
-				return "ADR:"+offset+"("+(baseAddress+offset)+")";
+		public void storeAbsolute(long address, long value) {
+			if (address<0) return;
+			memory.write(address, value);
+			invalidateDecoded(address);
+		}
+		
+		public void storeRelative(long offset, long value) {
+			long phys = baseAddress+offset;
+			if (phys<0) {
+				error = "Requested address is negative ("+baseAddress+" + "+offset+")";
+				halt();
+				return;
+			}
+			memory.write(phys, value);
+			invalidateDecoded(phys);
+		}
+		
+		/**
+		 * Returns the pre-decoded form of the instruction at pc, decoding and caching it if needed.
+		 * Packed as opcode | mode0&lt;&lt;8 | mode1&lt;&lt;12 | mode2&lt;&lt;16 | DECODED, plus a fusion kind at
+		 * FUSION_SHIFT if the instruction and the one after it make up an idiom (see fusionAt). Returns
+		 * UNDECODABLE for cells that don't fit that layout (negative or more than three mode digits),
+		 * which have to be handled by the slow path every time.
+		 * 
+		 * <p>The cache starts out covering the program image and grows if execution wanders past it,
+		 * up to MAX_DECODE_CACHE cells. Code running above that just doesn't get cached.
+		 */
+		public int decode(long pc) {
+			if (decodeFor!=memory) {
+				decodeCache = new int[(int)Math.max(1, Math.min(memory.imageLength(), MAX_DECODE_CACHE))];
+				decodeFor = memory;
+			}
+			if (pc<0 || pc>=decodeCache.length) {
+				if (pc<0 || pc>=MAX_DECODE_CACHE) return UNDECODABLE;
+				decodeCache = Arrays.copyOf(decodeCache, (int)Math.min(MAX_DECODE_CACHE, Math.max(pc+1, decodeCache.length*2L)));
+			}
+			
+			int cached = decodeCache[(int)pc];
+			if (cached!=0) return cached;
+			
+			int result = decodeCell(memory.read(pc));
+			if (result==UNDECODABLE) return UNDECODABLE;
+			result |= fusionAt(pc, result) << FUSION_SHIFT;
+			decodeCache[(int)pc] = result;
+			return result;
+		}
+		
+		private static int decodeCell(long opcodeAndMode) {
+			if (opcodeAndMode<0 || opcodeAndMode>=100_000) return UNDECODABLE;
+			int opcode = (int)(opcodeAndMode % 100);
+			int modes = (int)(opcodeAndMode / 100);
+			return DECODED | opcode | (modes%10)<<8 | ((modes/10)%10)<<12 | (modes/100)<<16;
+		}
+		
+		/**
+		 * Looks for the three idioms compiled intcode is full of, starting at pc:
+		 * <ul>
+		 * <li>ADD where the destination is also one of the sources and the other source is immediate,
+		 *     which is a counter going up or down. One address to work out instead of three.
+		 * <li>LES or EQU straight into a JNZ or JZ that tests the cell the comparison just wrote. The
+		 *     result still gets stored, but the branch uses it without reading it back.
+		 * <li>ADR followed by an ADD, MUL, LES or EQU. Function entry and exit look like this: move the
+		 *     frame, then do arithmetic on something in it and store the result.
+		 * </ul>
+		 * Only the raw cells get looked at here; whether the two halves still match memory when they
+		 * run is the decode cache's problem, which is why invalidation covers MAX_FUSED_LENGTH cells.
+		 */
+		private int fusionAt(long pc, int instruction) {
+			int modeA = (instruction >>  8) & 0xF;
+			int modeB = (instruction >> 12) & 0xF;
+			int modeC = (instruction >> 16) & 0xF;
+			switch(instruction & 0xFF) {
+			case 1: {
+				if (modeC!=0 && modeC!=2) return 0;
+				long dest = memory.read(pc+3);
+				if (modeA==modeC && modeB==1 && memory.read(pc+1)==dest) return FUSED_INCREMENT;
+				if (modeB==modeC && modeA==1 && memory.read(pc+2)==dest) return FUSED_INCREMENT;
+				return 0;
+			}
+			case 7:
+			case 8: {
+				long dest = memory.read(pc+3);
+				//A store to a negative absolute address goes nowhere, so the branch wouldn't see the result
+				if (!(modeC==0 && dest>=0) && modeC!=2) return 0;
+				int branch = decodeCell(memory.read(pc+4));
+				if (branch==UNDECODABLE) return 0;
+				int branchOpcode = branch & 0xFF;
+				if (branchOpcode!=5 && branchOpcode!=6) return 0;
+				if (((branch >> 8) & 0xF)!=modeC || memory.read(pc+5)!=dest) return 0;
+				return FUSED_COMPARE_BRANCH;
+			}
+			case 9: {
+				int next = decodeCell(memory.read(pc+2));
+				if (next==UNDECODABLE) return 0;
+				int nextOpcode = next & 0xFF;
+				return (nextOpcode==1 || nextOpcode==2 || nextOpcode==7 || nextOpcode==8) ? FUSED_ADR_STORE : 0;
+			}
 			default:
-				return "?"+mode+"?"+memory[(int)(programCounter+argNumber+1)];
+				return 0;
 			}
 		}
+		
+		/** True if the decoded instruction at pc is still the one we were handed, meaning nothing has written over any of its cells since. */
+		public boolean stillDecoded(long pc, int instruction) {
+			return decodeCache!=null && pc<decodeCache.length && decodeCache[(int)pc]==instruction;
+		}
+		
+		/**
+		 * Intcode is allowed to rewrite itself, so any write might land in the middle of an
+		 * instruction we've already decoded. A fused entry depends on at most MAX_FUSED_LENGTH cells,
+		 * so only the entries starting in the six cells before the write (and the cell itself) can
+		 * be stale.
+		 */
+		private void invalidateDecoded(long address) {
+			if (compiledCode!=null && address<compiledCode.length && compiledCode[(int)address]) codeModified = true;
+			if (decodeCache==null || address-(MAX_FUSED_LENGTH-1)>=decodeCache.length) return;
+			int last = (int)Math.min(address, decodeCache.length-1);
+			for(int i=(int)Math.max(0, address-(MAX_FUSED_LENGTH-1)); i<=last; i++) decodeCache[i] = 0;
+		}
+		
+		/** Throws out every decoded instruction. Call this if you write to memory directly while a program is loaded. */
+		public void invalidateDecodeCache() {
+			decodeCache = null;
+			decodeFor = null;
+		}
+		
+		public String explain(int argNumber) {
+			return Day9.explain(addressModes, argNumber, memory.read(programCounter+argNumber+1), baseAddress);
+		}
+		
+		@Override
+		public String prefix() {
+			return prefix;
+		}
+		
+		/**
+		 * Disassembles the instruction at the program counter. This is only ever called by trace
+		 * listeners, so nobody pays for the strings unless they asked for them.
+		 */
+		@Override
+		public String disassemble() {
+			long pc = programCounter;
+			return Day9.disassemble(memory.read(pc), memory.read(pc+1), memory.read(pc+2), memory.read(pc+3), baseAddress);
+		}
+	}
+	
+	/**
+	 * Produces the same one-line disassembly the opcodes used to build on every step. Works from
+	 * raw cells so that recorded traces can be rendered long after the machine is gone.
+	 */
+	public static String disassemble(long opcodeAndMode, long a, long b, long c, long baseAddress) {
+		long modes = opcodeAndMode / 100;
+		switch((int)(opcodeAndMode % 100)) {
+		case 1: return "ADD "+explain(modes, 0, a, baseAddress)+" "+explain(modes, 1, b, baseAddress)+" -> "+explain(modes, 2, c, baseAddress);
+		case 2: return "MUL "+explain(modes, 0, a, baseAddress)+" "+explain(modes, 1, b, baseAddress)+" -> "+explain(modes, 2, c, baseAddress);
+		case 3: return "IN  "+explain(modes, 0, a, baseAddress);
+		case 4: return "OUT "+explain(modes, 0, a, baseAddress);
+		case 5: return "JNZ "+explain(modes, 0, a, baseAddress)+" "+explain(modes, 1, b, baseAddress);
+		case 6: return "JZ  "+explain(modes, 0, a, baseAddress)+" "+explain(modes, 1, b, baseAddress);
+		case 7: return "LES "+explain(modes, 0, a, baseAddress)+" "+explain(modes, 1, b, baseAddress)+" -> "+explain(modes, 2, c, baseAddress);
+		case 8: return "EQU "+explain(modes, 0, a, baseAddress)+" "+explain(modes, 1, b, baseAddress)+" -> "+explain(modes, 2, c, baseAddress);
+		case 9: return "ADR "+explain(modes, 0, a, baseAddress);
+		case 99: return "HLT";
+		case -1: return "HCF";
+		default: return "ERROR";
+		}
+	}
+	
+	public static String explain(long addressModes, int argNumber, long operand, long baseAddress) {
+		long mode = addressModes;
+		for(int i=0; i<argNumber; i++) {
+			mode /= 10;
+		}
+		mode %= 10;
+		
+		switch((int)mode) {
+		case 0: //mem
+			return "["+operand+"]";
+		case 1: //imm
+			return ""+operand;
+		case 2: //rel
+			return "ADR:"+operand+"("+(baseAddress+operand)+")";
+		default:
+			return "?"+mode+"?"+operand;
+		}
+	}
+	
+	/**
+	 * What a trace listener gets to look at. Day 5's, day 7's and our ProgramState all are one, so
+	 * every machine traces in the same words.
+	 */
+	public static interface Traceable {
+		/** Tells machines apart when several share stdout. Empty if nobody named it. */
+		public String prefix();
+		
+		/** Disassembles the instruction at the program counter, using the mnemonics above. */
+		public String disassemble();
+	}
+	
+	/** Gets called right before each instruction runs, with programCounter pointing at it. */
+	public static interface TraceListener<S extends Traceable> {
+		public void trace(S state);
+	}
+	
+	/**
+	 * Something IN reads from. IntcodeChannel is one; so is anything a driver wants to look like
+	 * hardware to the program, like the hull robot's camera. The core calls these straight from its
+	 * dispatch, so a device doesn't need to replace any opcodes.
+	 */
+	public static interface InputDevice {
+		/** True if there's nothing to read yet, in which case IN waits and the core yields. */
+		public boolean isEmpty();
+		
+		/** The next value. Only called when isEmpty() says there is one. */
+		public long poll();
+		
+		/** Moves up to length values into dest, returning how many it moved. */
+		public default int drain(long[] dest, int offset, int length) {
+			int count = 0;
+			while(count<length && !isEmpty()) dest[offset+count++] = poll();
+			return count;
+		}
+	}
+	
+	/** Something OUT writes to. IntcodeChannel is one; so is the arcade's graphics card. */
+	public static interface OutputDevice {
+		public void push(long value);
+		
+		public default void pushAll(long[] values, int offset, int length) {
+			for(int i=0; i<length; i++) push(values[offset+i]);
+		}
+	}
+	
+	/** What verbose mode does, on every machine: print every instruction to stdout. */
+	public static final TraceListener<Traceable> PRINT_TRACE = (state)->System.out.println(state.prefix()+"> "+state.disassemble());
+	
+	/** A frozen copy of a ProgramState. Restoring one doesn't use it up, so you can go back to the same snapshot as often as you like. */
+	public static class Snapshot {
+		private final ProgramState state;
+		
+		private Snapshot(ProgramState state) {
+			this.state = state;
+		}
 	}
 	
 	public static class IntcodeCore {
 		public Map<Integer, Opcode> opcodes = new HashMap<>();
 		public ProgramState state = new ProgramState();
 		
+		/**
+		 * Hot blocks get compiled to JVM classes when this is set. Off by default since javac isn't
+		 * free; turn it on per-core, or for everything with -Dintcode.compile=true.
+		 */
+		public IntcodeCompiler compiler = Boolean.getBoolean("intcode.compile") ? new IntcodeCompiler() : null;
+		
+		/** Called before every instruction if set. Null means no tracing, and no tracing cost. */
+		public TraceListener<? super ProgramState> tracer = null;
+		
+		/** Lets runFast do common instruction pairs as one (see ProgramState.fusionAt). Only here so the benchmark can turn it off. */
+		public boolean fuseInstructions = true;
+		
+		/** The lambdas installed by the constructor, indexed by opcode, so we can tell when a driver swaps one out. */
+		private final Opcode[] stockOpcodes = new Opcode[100];
+		
 		public IntcodeCore() {
 			opcodes.put(1, (state)->{ //ADD
 				long a = state.fetch(0);
 				long b = state.fetch(1);
 				state.write(2, a+b);
-				state.lineDisassembly = "ADD "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				state.programCounter += 4;
 			});
 			
@@ -148,33 +470,29 @@ public class Day9 {
 				long a = state.fetch(0);
 				long b = state.fetch(1);
 				state.write(2, a*b);
-				state.lineDisassembly = "MUL "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				state.programCounter += 4;
 			});
 			
 			opcodes.put(3, (state)->{
-				state.lineDisassembly = "IN  "+state.explain(0);
-				
-				if (state.input.isEmpty()) {
+				InputDevice in = state.in();
+				if (in.isEmpty()) {
 					state.wait = true;
 				} else {
 					state.wait = false;
-					long input = state.input.remove(0);
+					long input = in.poll();
 					state.write(0, input);
 					state.programCounter += 2;
 				}
 			});
 			
 			opcodes.put(4, (state)->{
-				state.lineDisassembly = "OUT "+state.explain(0);
 				long out = state.fetch(0);
-				state.output.add(out);
+				state.out().push(out);
 				
 				state.programCounter += 2;
 			});
 			
 			opcodes.put(5, (state)->{
-				state.lineDisassembly = "JNZ "+state.explain(0)+" "+state.explain(1);
 				long nz = state.fetch(0);
 				long addr = state.fetch(1);
 				if (nz!=0) {
@@ -185,7 +503,6 @@ public class Day9 {
 			});
 			
 			opcodes.put(6, (state)->{
-				state.lineDisassembly = "JZ  "+state.explain(0)+" "+state.explain(1);
 				long z = state.fetch(0);
 				long addr = state.fetch(1);
 				if (z==0) {
@@ -196,7 +513,6 @@ public class Day9 {
 			});
 			
 			opcodes.put(7, (state)->{
-				state.lineDisassembly = "LES "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				long a = state.fetch(0);
 				long b = state.fetch(1);
 				
@@ -208,7 +524,6 @@ public class Day9 {
 			});
 			
 			opcodes.put(8, (state)->{
-				state.lineDisassembly = "EQU "+state.explain(0)+" "+state.explain(1)+" -> "+state.explain(2);
 				long a = state.fetch(0);
 				long b = state.fetch(1);
 				
@@ -220,63 +535,322 @@ public class Day9 {
 			});
 			
 			opcodes.put(9, (state)->{
-				state.lineDisassembly = "ADR "+state.explain(0);
 				long a = state.fetch(0);
 				state.baseAddress += a;
 				state.programCounter += 2;
 			});
 			
 			opcodes.put(99, (state)->{
-				state.lineDisassembly = "HLT";
 				state.programCounter++;
 				state.halt();
 			});
 			
 			opcodes.put(-1, (state)->{
-				state.lineDisassembly = "HCF";
 				state.programCounter = 0;
 				state.input.clear();
 				state.output.clear();
-				state.memory = new long[]{ 99 };
+				state.memory = IntcodeMemory.of(new long[]{ 99 });
 				state.error = "EVERYTHING IS FINE";
 				state.halt();
 			});
+			
+			for(Map.Entry<Integer, Opcode> entry : opcodes.entrySet()) {
+				int opcodeNum = entry.getKey();
+				if (opcodeNum>=0 && opcodeNum<stockOpcodes.length) stockOpcodes[opcodeNum] = entry.getValue();
+			}
 		}
 		
+		/**
+		 * Makes an independent copy of this core, paused at the same point. Memory pages are shared
+		 * until one side writes to them, so a fork costs O(pages written afterwards) instead of
+		 * O(memory size). Opcode overrides come along as-is, which means a lambda that captured
+		 * something (Day13's GraphicsCard, say) is shared between the two cores.
+		 */
+		public IntcodeCore fork() {
+			IntcodeCore result = new IntcodeCore();
+			result.opcodes.clear();
+			result.opcodes.putAll(opcodes);
+			System.arraycopy(stockOpcodes, 0, result.stockOpcodes, 0, stockOpcodes.length);
+			result.state = state.copy();
+			result.tracer = tracer;
+			result.compiler = (compiler!=null) ? new IntcodeCompiler() : null;
+			return result;
+		}
+		
+		public Snapshot snapshot() {
+			return new Snapshot(state.copy());
+		}
+		
+		/** Puts the machine back where it was when the snapshot was taken. Opcodes, tracer, and compiler are left alone. */
+		public void restore(Snapshot snapshot) {
+			state = snapshot.state.copy();
+		}
+		
+		/** Loads a copy of the program into fresh paged memory. There's no size limit any more; pages show up as the program touches them. */
 		public void setMemory(long[] memory) {
+			state.invalidateDecodeCache();
+			state.memory = IntcodeMemory.of(memory);
+		}
+		
+		/** Takes the memory as-is, for when it's already paged, like from IntcodeLoader.loadMemory. */
+		public void setMemory(IntcodeMemory memory) {
+			state.invalidateDecodeCache();
 			state.memory = memory;
-			if (memory.length<4096) {
-				state.memory = Arrays.copyOf(memory, 4096); //Ensure room for at least 4096 cells, each capable of storing numbers from [ -9223372036854775808L .. 9223372036854775807L ] incluisive
-			}
 		}
 		
 		public void runUntilYield(boolean verbose) {
 			if (state.isHalted() || state.waits()) return;
-			while(!state.isHalted() && !state.waits()) step(verbose);
+			if (verbose && tracer==null) {
+				tracer = PRINT_TRACE;
+				runFast();
+				tracer = null;
+			} else {
+				runFast();
+			}
 			
 			if (!state.error.isEmpty()) System.out.println(state.prefix+"> "+"Error: "+state.error);
 			if (verbose && !state.output.isEmpty()) System.out.println(state.prefix+"> "+"output: "+state.output);
-			if (verbose) System.out.println(state.prefix+"> "+"Final memory state: "+Arrays.toString(state.memory));
+			if (verbose) System.out.println(state.prefix+"> "+"Final memory state: "+state.memory);
 		}
 		
 		public void step(boolean verbose) {
 			if (state.isHalted()) return;
-			if (state.wait && state.input.isEmpty()) return;
+			if (state.waits()) return;
 			
-			long opcodeAndMode = state.memory[(int)state.programCounter];
+			if (verbose) PRINT_TRACE.trace(state);
+			if (tracer!=null) tracer.trace(state);
+			dispatch(state.memory.read(state.programCounter));
+		}
+		
+		/** Runs one instruction by looking it up in the opcodes map. This is the slow path, but it's the one that sees driver overrides. */
+		private void dispatch(long opcodeAndMode) {
 			long opcodeNum = opcodeAndMode % 100;
-				
+			
 			Opcode opcode = opcodes.get((int)opcodeNum);
 			if (opcode==null) {
-				state.lineDisassembly = "ERROR";
 				state.error = "Unknown opcode "+opcodeNum;
 				state.halt();
 			} else {
 				state.addressModes = opcodeAndMode / 100;
 				opcode.run(state);
 			}
+		}
+		
+		/**
+		 * Returns a table of which opcodes no longer point at the stock lambdas. Day11 swaps out IN
+		 * and Day13 swaps out OUT, and those have to keep going through the map.
+		 */
+		private boolean[] findOverrides() {
+			//Walks the map rather than looking up all hundred opcodes, since short runs (IntcodeBatch) notice the difference
+			boolean[] overridden = new boolean[stockOpcodes.length];
+			for(int i=0; i<overridden.length; i++) overridden[i] = stockOpcodes[i]!=null; //Removed counts as overridden
+			for(Map.Entry<Integer, Opcode> entry : opcodes.entrySet()) {
+				int opcode = entry.getKey();
+				if (opcode>=0 && opcode<overridden.length) overridden[opcode] = entry.getValue()!=stockOpcodes[opcode];
+			}
+			return overridden;
+		}
+		
+		/**
+		 * Runs until halt or input-wait, same as runUntilYield, but decodes with a switch instead of
+		 * a HashMap lookup and a lambda call for every instruction. The nine standard opcodes are
+		 * inlined here; anything overridden, unknown, or HCF falls back to the map.
+		 * 
+		 * <p>Each instruction is only split into opcode and address modes the first time we reach
+		 * it; after that we pull the decoded form out of the state's decode cache.
+		 * 
+		 * <p>If there's a compiler attached, every block boundary (start, jumps, anything the
+		 * compiled code punted on) checks for a compiled block first. Compiled blocks can't report
+		 * individual instructions, so a tracer turns the compiler off for the duration. It turns
+		 * fused instructions off too, and so does overriding any of the opcodes they're made of.
+		 */
+		public void runFast() {
+			runFor(Long.MAX_VALUE);
+		}
+		
+		/**
+		 * runFast, but it gives up once it's run budget instructions, so a program that never halts or
+		 * asks for input can't hold on to the thread forever. The budget only gets checked where a
+		 * block starts (jumps, IN, and anything that went through the map), so the hot loop doesn't
+		 * pay for it and it can go over by one straight run of code. Compiled blocks count every
+		 * instruction they ran, and an IN that has to wait doesn't count at all, whichever way it
+		 * gets dispatched.
+		 * 
+		 * <p>Returns how many instructions ran. If the state isn't halted or waiting afterwards, the
+		 * budget ran out, and calling this again carries on from where it stopped.
+		 */
+		public long runFor(long budget) {
+			final ProgramState state = this.state;
+			final boolean[] overridden = findOverrides();
+			final TraceListener<? super ProgramState> tracer = this.tracer;
+			final IntcodeCompiler compiler = (tracer==null) ? this.compiler : null;
+			final boolean fuse = fuseInstructions && tracer==null
+					&& !overridden[1] && !overridden[2] && !overridden[5] && !overridden[6]
+					&& !overridden[7] && !overridden[8] && !overridden[9];
+			boolean blockStart = true;
+			long executed = 0;
 			
-			if (verbose) System.out.println(state.prefix+"> "+state.lineDisassembly);
+			while(!state.halt) {
+				if (blockStart && executed>=budget) break;
+				if (tracer!=null) tracer.trace(state);
+				
+				if (blockStart && compiler!=null) {
+					IntcodeCompiler.CompiledBlock block = compiler.lookup(state, overridden);
+					if (block!=null) {
+						executed += block.run(state);
+						continue;
+					}
+				}
+				
+				int instruction = state.decode(state.programCounter);
+				int opcodeNum = instruction & 0xFF;
+				
+				if (instruction==ProgramState.UNDECODABLE || overridden[opcodeNum]) {
+					dispatch(state.memory.read(state.programCounter));
+					if (state.waits()) return executed; //It didn't run after all
+					executed++;
+					blockStart = true;
+					continue;
+				}
+				blockStart = false;
+				
+				if (fuse && (instruction >> ProgramState.FUSION_SHIFT)!=0) {
+					int ran = runFused(state, instruction);
+					executed += ran;
+					//Only a compare+branch that got to its second half ends on a jump
+					blockStart = (ran==2 && (instruction >> ProgramState.FUSION_SHIFT)==ProgramState.FUSED_COMPARE_BRANCH);
+					continue;
+				}
+				
+				executed++;
+				int modeA = (instruction >>  8) & 0xF;
+				int modeB = (instruction >> 12) & 0xF;
+				int modeC = (instruction >> 16) & 0xF;
+				switch(opcodeNum) {
+				case 1: //ADD
+					state.store(modeC, 2, state.load(modeA, 0) + state.load(modeB, 1));
+					state.programCounter += 4;
+					break;
+				case 2: //MUL
+					state.store(modeC, 2, state.load(modeA, 0) * state.load(modeB, 1));
+					state.programCounter += 4;
+					break;
+				case 3: { //IN
+					InputDevice in = state.in();
+					if (in.isEmpty()) {
+						state.wait = true;
+						return executed-1; //It didn't run after all
+					}
+					state.wait = false;
+					state.store(modeA, 0, in.poll());
+					state.programCounter += 2;
+					blockStart = true;
+					break;
+				}
+				case 4: //OUT
+					state.out().push(state.load(modeA, 0));
+					state.programCounter += 2;
+					break;
+				case 5: { //JNZ
+					long nz = state.load(modeA, 0);
+					long addr = state.load(modeB, 1);
+					state.programCounter = (nz!=0) ? addr : state.programCounter+3;
+					blockStart = true;
+					break;
+				}
+				case 6: { //JZ
+					long z = state.load(modeA, 0);
+					long addr = state.load(modeB, 1);
+					state.programCounter = (z==0) ? addr : state.programCounter+3;
+					blockStart = true;
+					break;
+				}
+				case 7: //LES
+					state.store(modeC, 2, (state.load(modeA, 0) < state.load(modeB, 1)) ? 1 : 0);
+					state.programCounter += 4;
+					break;
+				case 8: //EQU
+					state.store(modeC, 2, (state.load(modeA, 0) == state.load(modeB, 1)) ? 1 : 0);
+					state.programCounter += 4;
+					break;
+				case 9: //ADR
+					state.baseAddress += state.load(modeA, 0);
+					state.programCounter += 2;
+					break;
+				case 99: //HLT
+					state.programCounter++;
+					state.halt();
+					break;
+				default:
+					dispatch(state.memory.read(state.programCounter));
+					if (state.waits()) return executed-1;
+					blockStart = true;
+				}
+			}
+			return executed;
+		}
+	}
+	
+	/**
+	 * Runs a fused pair from ProgramState.fusionAt, exactly as if its instructions had gone through
+	 * the switch one at a time. If the first half writes over the second, the second half is left
+	 * for the next time around the loop, which will decode it fresh. Returns how many instructions
+	 * actually ran: an increment is one, and a pair is one if it stopped after the first half.
+	 */
+	private static int runFused(ProgramState state, int instruction) {
+		int modeA = (instruction >>  8) & 0xF;
+		int modeB = (instruction >> 12) & 0xF;
+		int modeC = (instruction >> 16) & 0xF;
+		long pc = state.programCounter;
+		
+		switch(instruction >> ProgramState.FUSION_SHIFT) {
+		case ProgramState.FUSED_INCREMENT: {
+			long step = (modeA==1) ? state.memory.read(pc+1) : state.memory.read(pc+2);
+			long dest = state.memory.read(pc+3);
+			if (modeC==0) {
+				state.storeAbsolute(dest, state.loadAbsolute(dest)+step);
+			} else {
+				long value = state.loadRelative(dest)+step;
+				if (!state.halt) state.storeRelative(dest, value);
+			}
+			state.programCounter = pc+4;
+			return 1;
+		}
+		case ProgramState.FUSED_COMPARE_BRANCH: {
+			long a = state.load(modeA, 0);
+			long b = state.load(modeB, 1);
+			boolean result = ((instruction & 0xFF)==7) ? a<b : a==b;
+			state.store(modeC, 2, result ? 1 : 0);
+			state.programCounter = pc+4;
+			if (state.halt || !state.stillDecoded(pc, instruction)) return 1;
+			
+			int branch = state.decode(pc+4);
+			long target = state.load((branch >> 12) & 0xF, 1);
+			boolean jump = ((branch & 0xFF)==5) ? result : !result;
+			state.programCounter = jump ? target : pc+7;
+			return 2;
+		}
+		case ProgramState.FUSED_ADR_STORE: {
+			state.baseAddress += state.load(modeA, 0);
+			state.programCounter = pc+2;
+			if (state.halt) return 1;
+			
+			int next = state.decode(pc+2);
+			long a = state.load((next >> 8) & 0xF, 0);
+			long b = state.load((next >> 12) & 0xF, 1);
+			long value;
+			switch(next & 0xFF) {
+			case 1: value = a+b; break;
+			case 2: value = a*b; break;
+			case 7: value = (a<b) ? 1 : 0; break;
+			default: value = (a==b) ? 1 : 0; break;
+			}
+			state.store((next >> 16) & 0xF, 2, value);
+			state.programCounter = pc+6;
+			return 2;
+		}
+		default:
+			return 0;
 		}
 	}
 	
@@ -289,15 +863,7 @@ public class Day9 {
 	 */
 	
 	public static long[] decode(String s) {
-		String[] parts = s.trim().split(",");
-		long[] result = new long[parts.length];
-		
-		for(int i=0; i<parts.length; i++) {
-			long l = Long.parseLong(parts[i]);
-			result[i] = l;
-		}
-		
-		return result;
+		return IntcodeLoader.parse(s);
 	}
 	
 	public static void run(String program) {
@@ -308,10 +874,9 @@ public class Day9 {
 	
 	public static void runFromFile() {
 		try {
-			List<String> file = Files.readAllLines(Paths.get("day9.dat"));
 			IntcodeCore core = new IntcodeCore();
-			core.state.input.add(1L); //"Test Mode"
-			core.setMemory(decode(file.get(0)));
+			core.state.input.push(1L); //"Test Mode"
+			core.setMemory(IntcodeLoader.loadMemory(Paths.get("day9.dat")));
 			core.runUntilYield(true);
 			
 		} catch (IOException ex) {
@@ -321,14 +886,23 @@ public class Day9 {
 	
 	public static void runPartTwo() {
 		try {
-			List<String> file = Files.readAllLines(Paths.get("day9.dat"));
 			IntcodeCore core = new IntcodeCore();
-			core.state.input.add(2L); //"Get Coordinates"
-			core.setMemory(decode(file.get(0)));
+			core.state.input.push(2L); //"Get Coordinates"
+			core.setMemory(IntcodeLoader.loadMemory(Paths.get("day9.dat")));
 			core.runUntilYield(true);
 			
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
 	}
+	
+	/** Part two again, quietly, with the profiler attached. */
+	public static void runProfiled() {
+		IntcodeCore core = new IntcodeCore();
+		core.state.input.push(2L);
+		core.setMemory(decode(AdventOfCode.loadFile("day9.dat").get(0)));
+		IntcodeProfiler.attach(core);
+		core.runUntilYield(false);
+		System.out.println("Output: "+core.state.output);
+	}
 }
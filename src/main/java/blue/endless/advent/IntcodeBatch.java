@@ -0,0 +1,186 @@
+package blue.endless.advent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs one program over and over with different inputs. Building a new IntcodeCore per run means
+ * a fresh opcode map, a copy of the whole image, and decoding every instruction again, which
+ * costs about as much as a short program like the Day5 diagnostic takes to run. Here every
+ * thread gets one core the first time it asks, and keeps it: between runs, the core puts back
+ * only the cells the last run changed (see ProgramState.resetTo), and decoded instructions carry
+ * over everywhere the last run didn't write. After the first run, a run allocates nothing but
+ * its output.
+ *
+ * <p>run() works from any thread, and calling it in a loop is as fast as a single thread gets.
+ * runAll() spreads a stream of jobs over a fixed pool of threads and hands back the results in the
+ * order the jobs went in, which only pays off when there are spare cores to spread them over: a
+ * Day5-sized run is a few microseconds, about what it costs to hand work to another thread. So
+ * jobs go out in chunks sized to take about TARGET_TASK_NANOS each, going by how long the last
+ * chunks took, and a batch with one thread skips the pool and runs everything on the caller. Only
+ * a few chunks per thread are in flight at once, so an endless input stream doesn't pile up in
+ * memory.
+ *
+ * <p>Cores here don't get the compiler. The programs this is for run a few hundred instructions,
+ * and compiled blocks are tied to one memory, which changes every run.
+ */
+public class IntcodeBatch implements AutoCloseable {
+	/** How long runAll aims for each chunk of jobs to take, so the handoff costs a lot less than the runs */
+	public static final long TARGET_TASK_NANOS = 500_000L;
+	/** Chunk size for the first few chunks, before we know how long a job takes */
+	public static final int FIRST_TASK_JOBS = 64;
+	public static final int MAX_TASK_JOBS = 1 << 16;
+	/** How many tasks runAll lets each thread have queued up */
+	public static final int IN_FLIGHT_PER_THREAD = 4;
+	
+	private final IntcodeMemory image;
+	private final int threads;
+	private final ThreadLocal<Core> cores = ThreadLocal.withInitial(this::newCore);
+	private ExecutorService pool = null;
+	/** How long a job took in the chunk that finished last, or 0 if none has yet */
+	private volatile long nanosPerJob = 0;
+	
+	public IntcodeBatch(long[] program) {
+		this(program, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public IntcodeBatch(long[] program, int threads) {
+		this.image = IntcodeMemory.of(program);
+		this.threads = Math.max(1, threads);
+	}
+	
+	/** Runs the program with these inputs and returns everything it output. Stops early if it waits for input we didn't give it. */
+	public long[] run(long... inputs) {
+		return run(inputs, (state, in)->state.input.pushAll(in), (state)->state.output.drainAll());
+	}
+	
+	/**
+	 * The general form: setup gets the freshly reset state and the job, to push inputs or patch
+	 * memory (Day2 writes its noun and verb straight into the program), and result pulls out
+	 * whatever the job's answer is once the core halts or waits.
+	 */
+	public <I, R> R run(I job, BiConsumer<Day9.ProgramState, I> setup, Function<Day9.ProgramState, R> result) {
+		Core core = cores.get();
+		core.core.state.resetTo(core.image);
+		setup.accept(core.core.state, job);
+		core.core.runFast();
+		return result.apply(core.core.state);
+	}
+	
+	/** run() for each input vector, on the pool, with the outputs in the same order as the inputs. */
+	public Stream<long[]> runAll(Stream<long[]> inputs) {
+		return runAll(inputs, (state, in)->state.input.pushAll(in), (state)->state.output.drainAll());
+	}
+	
+	public <I, R> Stream<R> runAll(Stream<I> jobs, BiConsumer<Day9.ProgramState, I> setup, Function<Day9.ProgramState, R> result) {
+		if (threads==1) return jobs.sequential().map((job)->run(job, setup, result));
+		
+		ExecutorService pool = pool();
+		Iterator<I> source = jobs.iterator();
+		Deque<Future<List<R>>> inFlight = new ArrayDeque<>();
+		int maxInFlight = threads*IN_FLIGHT_PER_THREAD;
+		
+		Iterator<R> results = new Iterator<R>() {
+			private Iterator<R> chunk = Collections.emptyIterator();
+			
+			private void fill() {
+				while(inFlight.size()<maxInFlight && source.hasNext()) {
+					int size = taskSize();
+					List<I> batch = new ArrayList<>(size);
+					while(batch.size()<size && source.hasNext()) batch.add(source.next());
+					inFlight.add(pool.submit(()->{
+						long start = System.nanoTime();
+						List<R> out = new ArrayList<>(batch.size());
+						for(I job : batch) out.add(run(job, setup, result));
+						nanosPerJob = Math.max(1, (System.nanoTime()-start)/batch.size());
+						return out;
+					}));
+				}
+			}
+			
+			@Override
+			public boolean hasNext() {
+				if (chunk.hasNext()) return true;
+				fill();
+				return !inFlight.isEmpty();
+			}
+			
+			@Override
+			public R next() {
+				if (chunk.hasNext()) return chunk.next();
+				fill();
+				if (inFlight.isEmpty()) throw new NoSuchElementException();
+				try {
+					chunk = inFlight.poll().get().iterator();
+					return chunk.next();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted waiting for a batch result", ex);
+				} catch (ExecutionException ex) {
+					throw new IllegalStateException("Batch job failed", ex.getCause());
+				}
+			}
+		};
+		
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false);
+	}
+	
+	private int taskSize() {
+		long perJob = nanosPerJob;
+		if (perJob==0) return FIRST_TASK_JOBS;
+		return (int)Math.max(1, Math.min(MAX_TASK_JOBS, TARGET_TASK_NANOS/perJob));
+	}
+	
+	private synchronized ExecutorService pool() {
+		if (pool==null) {
+			pool = Executors.newFixedThreadPool(threads, (task)->{
+				Thread thread = new Thread(task, "intcode-batch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return pool;
+	}
+	
+	/**
+	 * Each core gets its own fork of the image to reset from. fork() marks pages as shared on
+	 * the side being forked too, so having every thread fork the one image would mean threads
+	 * writing to the same flags; this way only newCore touches it, under the lock.
+	 */
+	private synchronized Core newCore() {
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = null;
+		return new Core(core, image.fork());
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (pool!=null) pool.shutdown();
+		pool = null;
+	}
+	
+	private static class Core {
+		final Day9.IntcodeCore core;
+		final IntcodeMemory image;
+		
+		Core(Day9.IntcodeCore core, IntcodeMemory image) {
+			this.core = core;
+			this.image = image;
+		}
+	}
+}
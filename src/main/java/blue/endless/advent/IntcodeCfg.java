@@ -0,0 +1,497 @@
+package blue.endless.advent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A static look at an intcode program: which cells are instructions, where the basic blocks are,
+ * how they jump to each other, and which blocks look like functions. Everything comes from the
+ * memory as it is when you call analyze(), so a program that rewrites its own code will drift
+ * away from this over time. Code is only looked for inside the program image, same as the
+ * compiler.
+ *
+ * <p>Instructions are found by following control flow from address 0 (plus any extra roots you
+ * pass in), not by sweeping the image, so data tables in the middle of the code don't get
+ * disassembled as nonsense. Jumps to an immediate address are followed. Jumps through memory or
+ * the relative base can't be, which is where the call/return guessing comes in:
+ * <ul>
+ * <li>A <b>call</b> is an always-taken jump to an immediate address, where the same straight run
+ *     of code just stored the address right after the jump as a constant. That constant is the
+ *     return address, so the code after the jump gets analyzed too.
+ * <li>A <b>return</b> is an always-taken jump whose target comes from the relative base, which is
+ *     where calls leave their return addresses.
+ * <li>A <b>function</b> is anything a call lands on, plus address 0. If it starts with an ADR of
+ *     a constant, that's its frame size.
+ * </ul>
+ * This matches what the AoC intcode compiler puts out. Hand-written intcode may not play along,
+ * and then you get INDIRECT exits with nothing known past them.
+ */
+public class IntcodeCfg {
+	public static enum Exit {
+		/** Runs off the end into the next block, which starts there because something jumps to it */
+		FALLTHROUGH,
+		/** Conditional jump: one edge for taken, one for not */
+		BRANCH,
+		/** Always-taken jump to a known address */
+		JUMP,
+		CALL,
+		RETURN,
+		/** Always-taken or conditional jump to an address we can't know statically */
+		INDIRECT,
+		HALT,
+		/** Runs into a cell that isn't a valid instruction, or off the end of the image */
+		INVALID;
+	}
+	
+	public static class Block {
+		public final int start;
+		/** One past the last cell of the last instruction */
+		public int end;
+		public int instructions = 0;
+		public Exit exit = Exit.FALLTHROUGH;
+		public final List<Block> successors = new ArrayList<>();
+		public final List<Block> predecessors = new ArrayList<>();
+		/** For CALL blocks, where the callee comes back to. Null otherwise. */
+		public Block returnSite = null;
+		/** The function this block was first found in */
+		public Function function = null;
+		
+		private Block(int start) {
+			this.start = start;
+		}
+		
+		/** Where the block's last instruction starts. */
+		public int lastInstruction(IntcodeCfg cfg) {
+			int pc = start;
+			for(int i=1; i<instructions; i++) pc += instructionLength(cfg.memory.read(pc));
+			return pc;
+		}
+		
+		@Override
+		public String toString() {
+			return "@"+start+".."+(end-1);
+		}
+	}
+	
+	public static class Function {
+		public final Block entry;
+		/** The ADR at the top of the function, or 0 if it doesn't start with one */
+		public long frameSize = 0;
+		public final List<Block> blocks = new ArrayList<>();
+		/** CALL blocks that land here */
+		public final List<Block> callers = new ArrayList<>();
+		
+		private Function(Block entry) {
+			this.entry = entry;
+		}
+		
+		@Override
+		public String toString() {
+			return "fn@"+entry.start;
+		}
+	}
+	
+	private final IntcodeMemory memory;
+	private final int codeLength;
+	private final boolean[] instructionStart;
+	private final boolean[] leader;
+	/** Return addresses, keyed by the address of the jump that makes the call */
+	private final Map<Integer, Integer> calls = new HashMap<>();
+	private final TreeSet<Long> jumpTargets = new TreeSet<>();
+	private final Block[] blockOf;
+	private final List<Block> blocks = new ArrayList<>();
+	private final List<Function> functions = new ArrayList<>();
+	private final Map<Block, Function> entries = new HashMap<>();
+	
+	private IntcodeCfg(IntcodeMemory memory) {
+		this.memory = memory;
+		this.codeLength = (int)Math.max(1, Math.min(memory.imageLength(), Day9.ProgramState.MAX_DECODE_CACHE));
+		this.instructionStart = new boolean[codeLength];
+		this.leader = new boolean[codeLength];
+		this.blockOf = new Block[codeLength];
+	}
+	
+	public static IntcodeCfg analyze(long[] program) {
+		return analyze(IntcodeMemory.of(program));
+	}
+	
+	/**
+	 * Analyzes from address 0, plus any extra roots. Roots are just places to start looking for
+	 * instructions; the profiler passes in every pc it saw run, which fills in whatever indirect
+	 * jumps hid from us.
+	 */
+	public static IntcodeCfg analyze(IntcodeMemory memory, long... roots) {
+		IntcodeCfg cfg = new IntcodeCfg(memory);
+		cfg.discover(roots);
+		cfg.buildBlocks();
+		cfg.link();
+		cfg.findFunctions();
+		return cfg;
+	}
+	
+	/** How many cells the instruction takes up, or 0 if it isn't one. */
+	public static int instructionLength(long opcodeAndMode) {
+		if (opcodeAndMode<0) return 0;
+		switch((int)(opcodeAndMode % 100)) {
+		case 1: case 2: case 7: case 8: return 4;
+		case 5: case 6: return 3;
+		case 3: case 4: case 9: return 2;
+		case 99: return 1;
+		default: return 0;
+		}
+	}
+	
+	private static int mode(long opcodeAndMode, int argNumber) {
+		long modes = opcodeAndMode / 100;
+		for(int i=0; i<argNumber; i++) modes /= 10;
+		return (int)(modes % 10);
+	}
+	
+	/* ****************************************************************************************** *
+	 * Pass 1: follow control flow and mark where instructions start.
+	 * ****************************************************************************************** */
+	
+	private void discover(long[] roots) {
+		Deque<Integer> work = new ArrayDeque<>();
+		work.add(0);
+		leader[0] = true;
+		for(long root : roots) if (root>=0 && root<codeLength) work.add((int)root);
+		
+		while(!work.isEmpty()) {
+			int pc = work.poll();
+			List<Long> constants = new ArrayList<>(); //Addresses stored as constants in this straight run, for spotting calls
+			
+			while(pc>=0 && pc<codeLength && !instructionStart[pc]) {
+				long cell = memory.read(pc);
+				int length = instructionLength(cell);
+				if (length==0) break;
+				instructionStart[pc] = true;
+				
+				int opcode = (int)(cell % 100);
+				if ((opcode==1 || opcode==2) && mode(cell, 0)==1 && mode(cell, 1)==1) {
+					long a = memory.read(pc+1);
+					long b = memory.read(pc+2);
+					constants.add((opcode==1) ? a+b : a*b);
+				}
+				
+				if (opcode==99) break;
+				if (opcode==5 || opcode==6) {
+					int taken = taken(cell, pc);
+					int targetMode = mode(cell, 1);
+					long target = memory.read(pc+2);
+					if (targetMode==1 && taken!=NEVER) {
+						jumpTargets.add(target);
+						if (target>=0 && target<codeLength) {
+							leader[(int)target] = true;
+							work.add((int)target);
+						}
+					}
+					
+					int next = pc+3;
+					if (taken==ALWAYS && targetMode==1 && constants.contains((long)next)) calls.put(pc, next);
+					if (taken!=ALWAYS || calls.containsKey(pc)) {
+						if (next<codeLength) {
+							leader[next] = true;
+							work.add(next);
+						}
+					}
+					break;
+				}
+				pc += length;
+			}
+		}
+	}
+	
+	private static final int NEVER = 0;
+	private static final int MAYBE = 1;
+	private static final int ALWAYS = 2;
+	
+	/** Whether the jump at pc goes, as far as an immediate condition can tell us. */
+	private int taken(long cell, int pc) {
+		if (mode(cell, 0)!=1) return MAYBE;
+		boolean nonZero = memory.read(pc+1)!=0;
+		boolean jnz = (cell % 100)==5;
+		return (nonZero==jnz) ? ALWAYS : NEVER;
+	}
+	
+	/* ****************************************************************************************** *
+	 * Pass 2: cut the instructions into blocks. A block starts at a leader or right after a jump,
+	 * and ends at a jump, a halt, or just before the next leader.
+	 * ****************************************************************************************** */
+	
+	private void buildBlocks() {
+		Block current = null;
+		for(int pc=0; pc<codeLength; pc++) {
+			if (!instructionStart[pc]) continue;
+			if (current==null || leader[pc] || current.end!=pc) {
+				current = new Block(pc);
+				blocks.add(current);
+			}
+			
+			long cell = memory.read(pc);
+			int length = instructionLength(cell);
+			current.instructions++;
+			current.end = pc+length;
+			for(int i=pc; i<Math.min(codeLength, pc+length); i++) {
+				if (blockOf[i]==null) blockOf[i] = current;
+			}
+			
+			int opcode = (int)(cell % 100);
+			if (opcode==5 || opcode==6 || opcode==99) current = null;
+		}
+	}
+	
+	/* ****************************************************************************************** *
+	 * Pass 3: work out how each block leaves, and wire up the edges.
+	 * ****************************************************************************************** */
+	
+	private void link() {
+		for(Block block : blocks) {
+			int pc = block.lastInstruction(this);
+			long cell = memory.read(pc);
+			int opcode = (int)(cell % 100);
+			
+			if (opcode==99) {
+				block.exit = Exit.HALT;
+			} else if (opcode==5 || opcode==6) {
+				int taken = taken(cell, pc);
+				int targetMode = mode(cell, 1);
+				Block target = (targetMode==1) ? blockStartingAt(memory.read(pc+2)) : null;
+				Block next = blockStartingAt(pc+3);
+				
+				if (taken==NEVER) {
+					block.exit = Exit.FALLTHROUGH;
+					connect(block, next);
+				} else if (targetMode!=1) {
+					block.exit = (taken==ALWAYS && targetMode==2) ? Exit.RETURN : Exit.INDIRECT;
+					if (taken==MAYBE) connect(block, next);
+				} else if (calls.containsKey(pc)) {
+					block.exit = Exit.CALL;
+					block.returnSite = next;
+					connect(block, target);
+				} else if (taken==ALWAYS) {
+					block.exit = Exit.JUMP;
+					connect(block, target);
+				} else {
+					block.exit = Exit.BRANCH;
+					connect(block, target);
+					connect(block, next);
+				}
+			} else {
+				Block next = blockStartingAt(block.end);
+				block.exit = (next==null) ? Exit.INVALID : Exit.FALLTHROUGH;
+				connect(block, next);
+			}
+		}
+	}
+	
+	private void connect(Block from, Block to) {
+		if (to==null || from.successors.contains(to)) return;
+		from.successors.add(to);
+		to.predecessors.add(from);
+	}
+	
+	/* ****************************************************************************************** *
+	 * Pass 4: group blocks into functions. Walks from each entry without following calls (it
+	 * steps over them to the return site instead) and without going past returns.
+	 * ****************************************************************************************** */
+	
+	private void findFunctions() {
+		if (blockStartingAt(0)!=null) addFunction(blockStartingAt(0));
+		for(Block block : blocks) {
+			if (block.exit==Exit.CALL && !block.successors.isEmpty()) {
+				Block callee = block.successors.get(0);
+				Function function = entries.get(callee);
+				if (function==null) function = addFunction(callee);
+				function.callers.add(block);
+			}
+		}
+		
+		for(Function function : functions) {
+			Set<Block> seen = new HashSet<>();
+			Deque<Block> work = new ArrayDeque<>();
+			work.add(function.entry);
+			while(!work.isEmpty()) {
+				Block block = work.poll();
+				if (!seen.add(block)) continue;
+				if (block!=function.entry && entries.containsKey(block)) continue;
+				function.blocks.add(block);
+				if (block.function==null) block.function = function;
+				
+				if (block.exit==Exit.CALL) {
+					if (block.returnSite!=null) work.add(block.returnSite);
+				} else {
+					work.addAll(block.successors);
+				}
+			}
+			function.blocks.sort((a, b)->Integer.compare(a.start, b.start));
+		}
+	}
+	
+	private Function addFunction(Block entry) {
+		Function function = new Function(entry);
+		if (memory.read(entry.start)==109) function.frameSize = memory.read(entry.start+1);
+		functions.add(function);
+		entries.put(entry, function);
+		return function;
+	}
+	
+	/* ****************************************************************************************** *
+	 * Queries
+	 * ****************************************************************************************** */
+	
+	public List<Block> blocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+	
+	public List<Function> functions() {
+		return Collections.unmodifiableList(functions);
+	}
+	
+	/** Every address some jump names as an immediate target, including ones outside the image. */
+	public TreeSet<Long> jumpTargets() {
+		return new TreeSet<>(jumpTargets);
+	}
+	
+	public boolean isInstruction(long pc) {
+		return pc>=0 && pc<codeLength && instructionStart[(int)pc];
+	}
+	
+	/** The block whose instructions cover pc, or null if pc isn't code we found. */
+	public Block blockAt(long pc) {
+		if (pc<0 || pc>=codeLength) return null;
+		return blockOf[(int)pc];
+	}
+	
+	/** The block that starts exactly at pc, or null. */
+	public Block blockStartingAt(long pc) {
+		Block block = blockAt(pc);
+		return (block!=null && block.start==pc) ? block : null;
+	}
+	
+	/** The function a block was first found in. Tail code shared between functions only counts for the first one. */
+	public Function functionOf(long pc) {
+		Block block = blockAt(pc);
+		return (block==null) ? null : block.function;
+	}
+	
+	/** Prints the CFG for a program file, and writes it out as Graphviz too if there's somewhere to put it. */
+	public static void run(String programFile, String dotFile) {
+		try {
+			IntcodeCfg cfg = analyze(IntcodeLoader.loadMemory(Paths.get(programFile)));
+			System.out.print(cfg.toText(true));
+			if (dotFile!=null) {
+				Files.write(Paths.get(dotFile), cfg.toDot().getBytes(StandardCharsets.UTF_8));
+				System.out.println("Wrote "+dotFile);
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	/* ****************************************************************************************** *
+	 * Dumps
+	 * ****************************************************************************************** */
+	
+	/** A listing by function and block. With instructions on, every instruction gets disassembled too. */
+	public String toText(boolean withInstructions) {
+		StringBuilder result = new StringBuilder();
+		result.append(blocks.size()).append(" blocks, ").append(functions.size()).append(" functions, ").append(jumpTargets.size()).append(" jump targets\n");
+		
+		Set<Block> listed = new HashSet<>();
+		for(Function function : functions) {
+			result.append('\n').append(function).append(" (frame ").append(function.frameSize).append(", ")
+				.append(function.callers.size()).append(" call sites, ").append(function.blocks.size()).append(" blocks)\n");
+			for(Block block : function.blocks) {
+				appendBlock(result, block, withInstructions);
+				listed.add(block);
+			}
+		}
+		
+		if (listed.size()<blocks.size()) {
+			result.append("\nnot in any function\n");
+			for(Block block : blocks) {
+				if (!listed.contains(block)) appendBlock(result, block, withInstructions);
+			}
+		}
+		return result.toString();
+	}
+	
+	private void appendBlock(StringBuilder result, Block block, boolean withInstructions) {
+		result.append("  ").append(block).append(" [").append(block.instructions).append("] ").append(block.exit);
+		if (!block.successors.isEmpty()) result.append(" -> ").append(block.successors);
+		if (block.returnSite!=null) result.append(" returns to ").append(block.returnSite);
+		result.append('\n');
+		if (withInstructions) {
+			for(int pc=block.start; pc<block.end; pc+=instructionLength(memory.read(pc))) {
+				result.append("      ").append(String.format("%6d  ", pc)).append(disassemble(pc)).append('\n');
+			}
+		}
+	}
+	
+	/**
+	 * Graphviz source: one box per block with its instructions, one cluster per function. Calls
+	 * are dashed, and the edge from a call to its return site is dotted since nothing actually
+	 * jumps along it.
+	 */
+	public String toDot() {
+		StringBuilder result = new StringBuilder("digraph intcode {\n");
+		result.append("\tnode [shape=box, fontname=\"monospace\"];\n");
+		
+		Set<Block> placed = new HashSet<>();
+		for(Function function : functions) {
+			result.append("\tsubgraph cluster_").append(function.entry.start).append(" {\n");
+			result.append("\t\tlabel=\"").append(function).append(" frame ").append(function.frameSize).append("\";\n");
+			for(Block block : function.blocks) {
+				if (!placed.add(block)) continue;
+				result.append("\t\t").append(dotNode(block)).append('\n');
+			}
+			result.append("\t}\n");
+		}
+		for(Block block : blocks) {
+			if (!placed.contains(block)) result.append('\t').append(dotNode(block)).append('\n');
+		}
+		
+		for(Block block : blocks) {
+			for(Block successor : block.successors) {
+				result.append("\tb").append(block.start).append(" -> b").append(successor.start);
+				if (block.exit==Exit.CALL) result.append(" [style=dashed]");
+				result.append(";\n");
+			}
+			if (block.returnSite!=null) result.append("\tb").append(block.start).append(" -> b").append(block.returnSite.start).append(" [style=dotted];\n");
+		}
+		result.append("}\n");
+		return result.toString();
+	}
+	
+	private String dotNode(Block block) {
+		StringBuilder label = new StringBuilder();
+		for(int pc=block.start; pc<block.end; pc+=instructionLength(memory.read(pc))) {
+			label.append(pc).append(": ").append(disassemble(pc).replace("\"", "\\\"")).append("\\l");
+		}
+		label.append(block.exit).append("\\l");
+		return "b"+block.start+" [label=\""+label+"\"];";
+	}
+	
+	/** Relative operands are shown against a base of 0, since there's no machine to ask. */
+	private String disassemble(int pc) {
+		return Day9.disassemble(memory.read(pc), memory.read(pc+1), memory.read(pc+2), memory.read(pc+3), 0);
+	}
+	
+	@Override
+	public String toString() {
+		return toText(false);
+	}
+}
@@ -0,0 +1,141 @@
+package blue.endless.advent;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable ring buffer of primitive longs, used for intcode input and output. Pushing and
+ * polling are both O(1) and nothing gets boxed, which matters when two machines are piped into
+ * each other and every value goes through one of these.
+ *
+ * <p>Values can also go in at the front, since Day7 hands each amplifier its phase setting ahead
+ * of whatever signal is already waiting. Not thread-safe.
+ *
+ * <p>This is the input and output device a ProgramState uses unless a driver plugs in its own.
+ */
+public class IntcodeChannel implements Day9.InputDevice, Day9.OutputDevice {
+	private long[] buffer;
+	private int head = 0;
+	private int size = 0;
+	
+	public IntcodeChannel() {
+		this(16);
+	}
+	
+	public IntcodeChannel(int initialCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(2, initialCapacity-1)) << 1;
+		buffer = new long[capacity];
+	}
+	
+	/** Returns a new channel holding the same values in the same order. */
+	public IntcodeChannel copy() {
+		IntcodeChannel result = new IntcodeChannel(0);
+		result.buffer = buffer.clone();
+		result.head = head;
+		result.size = size;
+		return result;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size==0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/** Adds a value at the back, to be read after everything already in here. */
+	@Override
+	public void push(long value) {
+		if (size==buffer.length) grow();
+		buffer[(head+size) & (buffer.length-1)] = value;
+		size++;
+	}
+	
+	/** Adds a value at the front, so it's the very next thing read. */
+	public void pushFirst(long value) {
+		if (size==buffer.length) grow();
+		head = (head-1) & (buffer.length-1);
+		buffer[head] = value;
+		size++;
+	}
+	
+	public void pushAll(long... values) {
+		pushAll(values, 0, values.length);
+	}
+	
+	@Override
+	public void pushAll(long[] values, int offset, int length) {
+		while(buffer.length-size<length) grow();
+		for(int i=0; i<length; i++) {
+			buffer[(head+size+i) & (buffer.length-1)] = values[offset+i];
+		}
+		size += length;
+	}
+	
+	/** Removes and returns the value at the front. */
+	@Override
+	public long poll() {
+		if (size==0) throw new NoSuchElementException("Channel is empty");
+		long result = buffer[head];
+		head = (head+1) & (buffer.length-1);
+		size--;
+		return result;
+	}
+	
+	public long peek() {
+		if (size==0) throw new NoSuchElementException("Channel is empty");
+		return buffer[head];
+	}
+	
+	/** Looks at the value index places from the front without removing anything. */
+	public long get(int index) {
+		if (index<0 || index>=size) throw new IndexOutOfBoundsException("Index "+index+" out of range for channel of size "+size);
+		return buffer[(head+index) & (buffer.length-1)];
+	}
+	
+	/**
+	 * Moves up to length values out of the channel into dest, in order. Returns how many were
+	 * actually moved. This is at most two arraycopies no matter how full the channel is.
+	 */
+	@Override
+	public int drain(long[] dest, int offset, int length) {
+		int count = Math.min(length, size);
+		int firstRun = Math.min(count, buffer.length-head);
+		System.arraycopy(buffer, head, dest, offset, firstRun);
+		System.arraycopy(buffer, 0, dest, offset+firstRun, count-firstRun);
+		head = (head+count) & (buffer.length-1);
+		size -= count;
+		return count;
+	}
+	
+	/** Empties the channel, returning everything that was in it. */
+	public long[] drainAll() {
+		long[] result = new long[size];
+		drain(result, 0, size);
+		return result;
+	}
+	
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+	
+	private void grow() {
+		long[] newBuffer = new long[buffer.length*2];
+		int firstRun = Math.min(size, buffer.length-head);
+		System.arraycopy(buffer, head, newBuffer, 0, firstRun);
+		System.arraycopy(buffer, 0, newBuffer, firstRun, size-firstRun);
+		buffer = newBuffer;
+		head = 0;
+	}
+	
+	/** Same format as a List, so the old "output: [...]" messages don't change. */
+	@Override
+	public String toString() {
+		long[] contents = new long[size];
+		for(int i=0; i<size; i++) contents[i] = get(i);
+		return Arrays.toString(contents);
+	}
+}
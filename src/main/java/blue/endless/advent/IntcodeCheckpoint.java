@@ -0,0 +1,233 @@
+package blue.endless.advent;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves a ProgramState to disk and loads it back, so a long run (the arcade, a Day15 exploration)
+ * can be put down and picked up again later. Everything in the state goes in: registers, the
+ * halt and wait flags, whatever's sitting in the input and output channels, and every memory page
+ * that isn't all zeroes. Decoded instructions and compiled code don't; the restored state rebuilds
+ * those as it runs, same as a copy() does.
+ *
+ * <p>The format is little-endian and everything after the strings is 8-byte aligned, so restoring
+ * is a memory map plus a bulk copy per page rather than parsing:
+ * <pre>
+ *   int   magic ("ICKP")      int   version
+ *   int   flags               int   page count
+ *   long  program counter     long  base address
+ *   long  address modes       long  image length
+ *   int   input size          int   output size
+ *   int   prefix bytes        int   error bytes
+ *   prefix, error (UTF-8), zero-padded to a multiple of 8
+ *   input values, output values
+ *   page count x { long page index, PAGE_SIZE longs }
+ * </pre>
+ * Readers look at the version first and read the rest the way that version laid it out, so when
+ * the layout changes, bump VERSION, add a case to read(), and old checkpoints keep loading.
+ *
+ * <p>The whole file is mapped in one go, which caps a checkpoint at 2GB, or about 260 thousand
+ * pages. Nothing we run comes within a few orders of magnitude of that.
+ */
+public class IntcodeCheckpoint {
+	public static final int MAGIC = 'I' | 'C' << 8 | 'K' << 16 | 'P' << 24;
+	public static final int VERSION = 1;
+	
+	public static final int FLAG_HALTED = 1;
+	public static final int FLAG_WAITING = 2;
+	
+	private static final int FIXED_HEADER_BYTES = 4*4 + 4*8 + 4*4;
+	private static final int PAGE_RECORD_BYTES = 8 + IntcodeMemory.PAGE_SIZE*8;
+	/** How many pages we gather up before handing them to the channel */
+	private static final int PAGES_PER_WRITE = 64;
+	
+	/**
+	 * Saves the core's state. Opcodes, tracer, and compiler belong to the core, not the state, so
+	 * they aren't saved. Neither are input and output devices, which belong to the driver; plug
+	 * them back in after restoring.
+	 */
+	public static void save(Day9.IntcodeCore core, Path path) throws IOException {
+		write(core.state, path);
+	}
+	
+	/** Replaces the core's state with the checkpoint's, the same way restore(Snapshot) does. */
+	public static void restore(Day9.IntcodeCore core, Path path) throws IOException {
+		core.state = read(path);
+	}
+	
+	/**
+	 * Writes the state out. It goes to a temporary file next to path first and gets moved into
+	 * place at the end, so dying halfway through leaves the previous checkpoint alone.
+	 */
+	public static void write(Day9.ProgramState state, Path path) throws IOException {
+		byte[] prefix = state.prefix.getBytes(StandardCharsets.UTF_8);
+		byte[] error = state.error.getBytes(StandardCharsets.UTF_8);
+		int pageCount = countPages(state.memory);
+		int input = state.input.size();
+		int output = state.output.size();
+		
+		int headerBytes = FIXED_HEADER_BYTES + align(prefix.length+error.length) + (input+output)*8;
+		ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt((state.halt ? FLAG_HALTED : 0) | (state.wait ? FLAG_WAITING : 0));
+		header.putInt(pageCount);
+		header.putLong(state.programCounter);
+		header.putLong(state.baseAddress);
+		header.putLong(state.addressModes);
+		header.putLong(state.memory.imageLength());
+		header.putInt(input);
+		header.putInt(output);
+		header.putInt(prefix.length);
+		header.putInt(error.length);
+		header.put(prefix);
+		header.put(error);
+		header.position(FIXED_HEADER_BYTES + align(prefix.length+error.length));
+		for(int i=0; i<input; i++) header.putLong(state.input.get(i));
+		for(int i=0; i<output; i++) header.putLong(state.output.get(i));
+		header.flip();
+		
+		Path temp = path.resolveSibling(path.getFileName()+".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, header);
+			
+			ByteBuffer pages = ByteBuffer.allocateDirect(PAGE_RECORD_BYTES*PAGES_PER_WRITE).order(ByteOrder.LITTLE_ENDIAN);
+			LongBuffer pageLongs = pages.asLongBuffer();
+			IOException[] failure = { null };
+			state.memory.forEachPage((pageIndex, page)->{
+				if (failure[0]!=null || isZero(page)) return;
+				pageLongs.put(pageIndex);
+				pageLongs.put(page);
+				if (!pageLongs.hasRemaining()) {
+					failure[0] = flush(channel, pages, pageLongs);
+				}
+			});
+			if (failure[0]!=null) throw failure[0];
+			IOException last = flush(channel, pages, pageLongs);
+			if (last!=null) throw last;
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/** Reads a checkpoint back into a brand new ProgramState. */
+	public static Day9.ProgramState read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size>Integer.MAX_VALUE) throw new IOException("Checkpoint "+path+" is too big to map ("+size+" bytes)");
+			if (size<8) throw new IOException("Checkpoint "+path+" is truncated");
+			
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if (mapped.getInt()!=MAGIC) throw new IOException(path+" isn't an intcode checkpoint");
+			int version = mapped.getInt();
+			try {
+				switch(version) {
+				case 1: return readVersion1(mapped);
+				default: throw new IOException("Checkpoint "+path+" is version "+version+", but we only know up to "+VERSION);
+				}
+			} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+				throw new IOException("Checkpoint "+path+" is truncated or corrupt", ex);
+			}
+		}
+	}
+	
+	private static Day9.ProgramState readVersion1(ByteBuffer buffer) {
+		Day9.ProgramState state = new Day9.ProgramState();
+		int flags = buffer.getInt();
+		int pageCount = buffer.getInt();
+		state.halt = (flags & FLAG_HALTED)!=0;
+		state.wait = (flags & FLAG_WAITING)!=0;
+		state.programCounter = buffer.getLong();
+		state.baseAddress = buffer.getLong();
+		state.addressModes = buffer.getLong();
+		long imageLength = buffer.getLong();
+		int input = buffer.getInt();
+		int output = buffer.getInt();
+		//Every length gets checked against what's actually left before we allocate for it, so a
+		//corrupt header gets the usual IOException instead of asking for gigabytes
+		byte[] prefix = new byte[checkLength(buffer.getInt(), buffer.remaining())];
+		byte[] error = new byte[checkLength(buffer.getInt(), buffer.remaining()-prefix.length)];
+		buffer.get(prefix);
+		buffer.get(error);
+		state.prefix = new String(prefix, StandardCharsets.UTF_8);
+		state.error = new String(error, StandardCharsets.UTF_8);
+		buffer.position(FIXED_HEADER_BYTES + align(prefix.length+error.length));
+		
+		LongBuffer longs = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		state.input = readChannel(longs, checkLength(input, longs.remaining()));
+		state.output = readChannel(longs, checkLength(output, longs.remaining()));
+		
+		checkLength(pageCount, longs.remaining()/(1+IntcodeMemory.PAGE_SIZE));
+		IntcodeMemory memory = new IntcodeMemory();
+		for(int i=0; i<pageCount; i++) {
+			long pageIndex = longs.get();
+			//Addresses never go negative, so neither do page indices; read() reports this as corrupt
+			if (pageIndex<0 || pageIndex>(Long.MAX_VALUE >>> IntcodeMemory.PAGE_BITS)) throw new IllegalArgumentException("Bad page index "+pageIndex);
+			long[] page = new long[IntcodeMemory.PAGE_SIZE];
+			longs.get(page);
+			memory.installPage(pageIndex, page);
+		}
+		memory.setImageLength(imageLength);
+		state.memory = memory;
+		
+		return state;
+	}
+	
+	/** Returns length if it's between 0 and available; otherwise the file's corrupt, which read() reports. */
+	private static int checkLength(int length, int available) {
+		if (length<0 || length>available) throw new IllegalArgumentException("Length "+length+" with only "+available+" left");
+		return length;
+	}
+	
+	private static IntcodeChannel readChannel(LongBuffer longs, int size) {
+		IntcodeChannel result = new IntcodeChannel(size);
+		for(int i=0; i<size; i++) result.push(longs.get());
+		return result;
+	}
+	
+	private static IOException flush(FileChannel channel, ByteBuffer pages, LongBuffer pageLongs) {
+		pages.limit(pageLongs.position()*8);
+		pages.position(0);
+		try {
+			writeFully(channel, pages);
+		} catch (IOException ex) {
+			return ex;
+		}
+		pages.clear();
+		pageLongs.clear();
+		return null;
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) channel.write(buffer);
+	}
+	
+	private static int countPages(IntcodeMemory memory) {
+		int[] count = { 0 };
+		memory.forEachPage((pageIndex, page)->{
+			if (!isZero(page)) count[0]++;
+		});
+		return count[0];
+	}
+	
+	/** A page of zeroes reads back the same whether it's there or not, so there's no point saving one. */
+	private static boolean isZero(long[] page) {
+		for(long value : page) if (value!=0) return false;
+		return true;
+	}
+	
+	private static int align(int bytes) {
+		return (bytes+7) & ~7;
+	}
+}
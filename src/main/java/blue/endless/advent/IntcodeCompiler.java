@@ -0,0 +1,412 @@
+package blue.endless.advent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Second execution tier for IntcodeCore. Once a basic block has been entered HOT_THRESHOLD times,
+ * it gets turned into Java source with all its operands baked in as constants, run through javac,
+ * and loaded as a real class, so HotSpot can JIT it into machine code like anything else.
+ *
+ * <p>A block runs straight-line ADD/MUL/LES/EQU/OUT/ADR instructions and ends at the first jump,
+ * which it also executes. IN, HLT, overridden opcodes and anything weird are left to the
+ * interpreter. If the program writes into compiled code, the block bails out right after that
+ * instruction and the affected blocks are thrown away, so self-modifying programs still behave.
+ *
+ * <p>Only code inside the loaded program image is considered for compiling.
+ *
+ * <p>Needs a JDK. On a plain JRE there's no system compiler and everything just stays interpreted.
+ */
+public class IntcodeCompiler {
+	public static final int HOT_THRESHOLD = 200;
+	public static final int MAX_BLOCK_LENGTH = 64;
+	/** How many blocks SHARED_BLOCKS remembers. A program rarely has more than a few hundred hot ones. */
+	public static final int MAX_SHARED_BLOCKS = 4096;
+	public static final String PACKAGE = "blue.endless.advent.compiled";
+	
+	public static interface CompiledBlock {
+		/** Runs the block and returns how many instructions that was. On return, programCounter points at the next instruction to execute. */
+		public int run(Day9.ProgramState state);
+	}
+	
+	/** Marker for entry points we looked at and couldn't do anything with (they start with IN, HLT, an override...) */
+	private static final CompiledBlock NOT_COMPILABLE = (state)->0;
+	
+	/**
+	 * Blocks are stateless, so any core that compiles the exact same source can share the class.
+	 * Least recently used blocks fall out past MAX_SHARED_BLOCKS, so a process that goes through
+	 * lots of programs doesn't hang on to every class it ever made. Once no core's using a batch's
+	 * blocks either, the batch's BlockLoader and its classes can be unloaded.
+	 */
+	private static final Map<String, CompiledBlock> SHARED_BLOCKS = Collections.synchronizedMap(new LinkedHashMap<String, CompiledBlock>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledBlock> eldest) {
+			return size()>MAX_SHARED_BLOCKS;
+		}
+	});
+	private static int classCounter = 0;
+	
+	private final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+	
+	private IntcodeMemory compiledFor = null;
+	private boolean[] overriddenFor = null;
+	private CompiledBlock[] blocks;
+	private Block[] sources;
+	private int[] hotness;
+	
+	public int blocksCompiled = 0;
+	public int blocksDiscarded = 0;
+	
+	public boolean isAvailable() {
+		return javac!=null;
+	}
+	
+	/**
+	 * Returns the compiled block starting at the state's current programCounter, or null if the
+	 * interpreter should handle it. Only call this at block boundaries (after a jump, after an
+	 * interpreted IN, and so on) or the hotness counts won't mean much.
+	 */
+	public CompiledBlock lookup(Day9.ProgramState state, boolean[] overridden) {
+		if (javac==null) return null;
+		if (state.memory!=compiledFor) reset(state);
+		if (overridden!=overriddenFor) {
+			if (overriddenFor!=null && !Arrays.equals(overridden, overriddenFor)) reset(state);
+			overriddenFor = overridden;
+		}
+		if (state.codeModified) revalidate(state);
+		
+		long pc = state.programCounter;
+		if (pc<0 || pc>=blocks.length) return null;
+		
+		CompiledBlock block = blocks[(int)pc];
+		if (block==null && ++hotness[(int)pc]>=HOT_THRESHOLD) {
+			compileHotBlocks(state);
+			block = blocks[(int)pc];
+		}
+		
+		return (block==NOT_COMPILABLE) ? null : block;
+	}
+	
+	private void reset(Day9.ProgramState state) {
+		int codeLength = (int)Math.max(1, Math.min(state.memory.imageLength(), Day9.ProgramState.MAX_DECODE_CACHE));
+		compiledFor = state.memory;
+		blocks = new CompiledBlock[codeLength];
+		sources = new Block[codeLength];
+		hotness = new int[codeLength];
+		state.compiledCode = new boolean[codeLength];
+		state.codeModified = false;
+	}
+	
+	/** Something wrote into compiled code. Drop every block whose cells no longer match what we compiled. */
+	private void revalidate(Day9.ProgramState state) {
+		Arrays.fill(state.compiledCode, false);
+		for(int i=0; i<blocks.length; i++) {
+			if (blocks[i]==NOT_COMPILABLE) {
+				blocks[i] = null; //cheap to re-check, and the code there may have changed too
+			} else if (sources[i]!=null) {
+				Block block = sources[i];
+				if (block.matches(state.memory)) {
+					Arrays.fill(state.compiledCode, block.start, block.end, true);
+				} else {
+					blocks[i] = null;
+					sources[i] = null;
+					hotness[i] = 0;
+					blocksDiscarded++;
+				}
+			}
+		}
+		state.codeModified = false;
+	}
+	
+	/** Compiles every block that's reasonably warm in one javac run, since starting javac is the expensive part. */
+	private void compileHotBlocks(Day9.ProgramState state) {
+		List<Block> batch = new ArrayList<>();
+		for(int pc=0; pc<hotness.length; pc++) {
+			if (blocks[pc]!=null || hotness[pc]<HOT_THRESHOLD/4) continue;
+			
+			Block block = scan(state, pc, overriddenFor);
+			if (block==null) {
+				blocks[pc] = NOT_COMPILABLE;
+				continue;
+			}
+			
+			CompiledBlock shared = SHARED_BLOCKS.get(block.body);
+			if (shared!=null) {
+				install(state, block, shared);
+			} else {
+				batch.add(block);
+			}
+		}
+		
+		if (batch.isEmpty()) return;
+		
+		Map<String, String> classSources = new HashMap<>();
+		for(Block block : batch) {
+			block.className = "Block_"+nextClassNumber()+"_"+block.start;
+			classSources.put(PACKAGE+"."+block.className, block.toSource());
+		}
+		
+		Map<String, byte[]> classFiles = compile(classSources);
+		BlockLoader loader = new BlockLoader(IntcodeCompiler.class.getClassLoader());
+		for(Block block : batch) {
+			byte[] bytes = (classFiles==null) ? null : classFiles.get(PACKAGE+"."+block.className);
+			if (bytes==null) {
+				blocks[block.start] = NOT_COMPILABLE;
+				continue;
+			}
+			
+			try {
+				Class<?> clazz = loader.define(PACKAGE+"."+block.className, bytes);
+				CompiledBlock compiled = (CompiledBlock) clazz.getDeclaredConstructor().newInstance();
+				SHARED_BLOCKS.putIfAbsent(block.body, compiled);
+				install(state, block, compiled);
+			} catch (ReflectiveOperationException | LinkageError ex) {
+				ex.printStackTrace();
+				blocks[block.start] = NOT_COMPILABLE;
+			}
+		}
+	}
+	
+	private void install(Day9.ProgramState state, Block block, CompiledBlock compiled) {
+		blocks[block.start] = compiled;
+		sources[block.start] = block;
+		Arrays.fill(state.compiledCode, block.start, block.end, true);
+		blocksCompiled++;
+	}
+	
+	private static synchronized int nextClassNumber() {
+		return classCounter++;
+	}
+	
+	/**
+	 * Works out the extent of the block starting at pc and generates its body. Returns null if the
+	 * very first instruction is one we have to leave to the interpreter.
+	 */
+	public static Block scan(Day9.ProgramState state, int pc, boolean[] overridden) {
+		IntcodeMemory mem = state.memory;
+		int codeLength = state.compiledCode.length;
+		StringBuilder body = new StringBuilder();
+		int cur = pc;
+		boolean terminated = false;
+		int instructions = 0;
+		
+		for(int count=0; count<MAX_BLOCK_LENGTH && !terminated; count++) {
+			if (cur+3>=codeLength) break; //Keep every cell we bake in inside the window that write-tracking covers
+			int instruction = state.decode(cur);
+			if (instruction==Day9.ProgramState.UNDECODABLE) break;
+			
+			int opcode = instruction & 0xFF;
+			if (overridden!=null && overridden[opcode]) break;
+			int modeA = (instruction >>  8) & 0xF;
+			int modeB = (instruction >> 12) & 0xF;
+			int modeC = (instruction >> 16) & 0xF;
+			
+			switch(opcode) {
+			case 1:
+			case 2:
+			case 7:
+			case 8: {
+				if (modeA>2 || modeB>2 || (modeC!=0 && modeC!=2)) break;
+				String a = operand(mem, cur, 0, modeA);
+				String b = operand(mem, cur, 1, modeB);
+				String value;
+				switch(opcode) {
+				case 1: value = a+" + "+b; break;
+				case 2: value = a+" * "+b; break;
+				case 7: value = "("+a+" < "+b+") ? 1L : 0L"; break;
+				default: value = "("+a+" == "+b+") ? 1L : 0L"; break;
+				}
+				body.append("\t\t").append(storeTo(mem, cur, 2, modeC, value)).append(";\n");
+				cur += 4;
+				instructions++;
+				guard(body, cur, instructions);
+				continue;
+			}
+			case 4:
+				if (modeA>2) break;
+				body.append("\t\ts.out().push(").append(operand(mem, cur, 0, modeA)).append(");\n");
+				cur += 2;
+				instructions++;
+				guard(body, cur, instructions);
+				continue;
+			case 9:
+				if (modeA>2) break;
+				body.append("\t\ts.baseAddress += ").append(operand(mem, cur, 0, modeA)).append(";\n");
+				cur += 2;
+				instructions++;
+				guard(body, cur, instructions);
+				continue;
+			case 5:
+			case 6:
+				if (modeA>2 || modeB>2) break;
+				body.append("\t\tlong test = ").append(operand(mem, cur, 0, modeA)).append(";\n");
+				body.append("\t\tlong target = ").append(operand(mem, cur, 1, modeB)).append(";\n");
+				body.append("\t\ts.programCounter = (test").append(opcode==5 ? "!=" : "==").append("0) ? target : ").append(cur+3).append("L;\n");
+				cur += 3;
+				instructions++;
+				terminated = true;
+				continue;
+			default:
+				break;
+			}
+			break; //Anything that fell out of the switch ends the block before that instruction
+		}
+		
+		if (cur==pc) return null;
+		if (!terminated) body.append("\t\ts.programCounter = ").append(cur).append("L;\n");
+		body.append("\t\treturn ").append(instructions).append(";\n");
+		
+		long[] image = new long[cur-pc];
+		for(int i=0; i<image.length; i++) image[i] = mem.read(pc+i);
+		return new Block(pc, cur, image, body.toString());
+	}
+	
+	private static String operand(IntcodeMemory mem, int pc, int argNumber, int mode) {
+		long raw = mem.read(pc+argNumber+1);
+		switch(mode) {
+		case 0: return "s.loadAbsolute("+raw+"L)";
+		case 1: return "("+raw+"L)";
+		default: return "s.loadRelative("+raw+"L)";
+		}
+	}
+	
+	private static String storeTo(IntcodeMemory mem, int pc, int argNumber, int mode, String value) {
+		long raw = mem.read(pc+argNumber+1);
+		if (mode==0) return "s.storeAbsolute("+raw+"L, "+value+")";
+		return "s.storeRelative("+raw+"L, "+value+")";
+	}
+	
+	/** Errors halt the machine, and writes into compiled code mean the rest of this block might be stale. Either way, hand back to the interpreter. */
+	private static void guard(StringBuilder body, int nextPc, int ran) {
+		body.append("\t\tif (s.halt || s.codeModified) { s.programCounter = ").append(nextPc).append("L; return ").append(ran).append("; }\n");
+	}
+	
+	public static class Block {
+		public final int start;
+		public final int end;
+		public final long[] image;
+		public final String body;
+		private String className;
+		
+		public Block(int start, int end, long[] image, String body) {
+			this.start = start;
+			this.end = end;
+			this.image = image;
+			this.body = body;
+		}
+		
+		public boolean matches(IntcodeMemory memory) {
+			for(int i=0; i<image.length; i++) {
+				if (memory.read(start+i)!=image[i]) return false;
+			}
+			return true;
+		}
+		
+		public String toSource() {
+			return
+				"package "+PACKAGE+";\n"+
+				"\n"+
+				"public final class "+className+" implements blue.endless.advent.IntcodeCompiler.CompiledBlock {\n"+
+				"\t@Override\n"+
+				"\tpublic int run(blue.endless.advent.Day9.ProgramState s) {\n"+
+				body+
+				"\t}\n"+
+				"}\n";
+		}
+	}
+	
+	/* ****************************************************************************************** *
+	 * javac plumbing. Sources go in from strings and class files come back out as byte arrays, so
+	 * nothing ever touches the disk.
+	 * ****************************************************************************************** */
+	
+	private Map<String, byte[]> compile(Map<String, String> classSources) {
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		StandardJavaFileManager standardManager = javac.getStandardFileManager(diagnostics, null, null);
+		Map<String, ByteArrayOutputStream> output = new HashMap<>();
+		
+		JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///"+className.replace('.', '/')+kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						output.put(className, out);
+						return out;
+					}
+				};
+			}
+		};
+		
+		List<JavaFileObject> units = new ArrayList<>();
+		for(Map.Entry<String, String> entry : classSources.entrySet()) {
+			String source = entry.getValue();
+			units.add(new SimpleJavaFileObject(URI.create("string:///"+entry.getKey().replace('.', '/')+".java"), JavaFileObject.Kind.SOURCE) {
+				@Override
+				public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+					return source;
+				}
+			});
+		}
+		
+		List<String> options = Arrays.asList("-classpath", classpath(), "-g:none", "-proc:none", "-nowarn");
+		boolean success = javac.getTask(null, fileManager, diagnostics, options, null, units).call();
+		if (!success) {
+			for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+				System.err.println("Intcode compiler: "+diagnostic);
+			}
+			return null;
+		}
+		
+		Map<String, byte[]> result = new HashMap<>();
+		for(Map.Entry<String, ByteArrayOutputStream> entry : output.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().toByteArray());
+		}
+		return result;
+	}
+	
+	/** The generated code needs to see Day9 and this class. Under gradle or JMH that isn't always on java.class.path, so add wherever we were loaded from. */
+	private static String classpath() {
+		String classpath = System.getProperty("java.class.path", "");
+		try {
+			String ours = new File(IntcodeCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+			if (!classpath.contains(ours)) classpath = ours + File.pathSeparator + classpath;
+		} catch (Exception ex) {
+			//Fine, java.class.path will have to do.
+		}
+		return classpath;
+	}
+	
+	private static class BlockLoader extends ClassLoader {
+		public BlockLoader(ClassLoader parent) {
+			super(parent);
+		}
+		
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
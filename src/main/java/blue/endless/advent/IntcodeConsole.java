@@ -0,0 +1,96 @@
+package blue.endless.advent;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * An OUT device for ASCII programs like the Day17 camera. Characters go into one reusable buffer
+ * and each line is handed off the moment its newline comes out, so whoever's listening can work
+ * on a camera feed while the program is still running instead of collecting the whole thing and
+ * splitting it up afterwards. Carriage returns are dropped.
+ *
+ * <p>A blank line ends a frame: if there's a frame listener, it gets every line since the last
+ * blank one. Anything outside 0..127 isn't a character at all, it's an answer (dust collected,
+ * damage taken), so it goes to the number listener as-is and doesn't touch the current line.
+ */
+public class IntcodeConsole implements Day9.OutputDevice {
+	private final LineListener lineListener;
+	private final FrameListener frameListener;
+	private final LongConsumer numberListener;
+	
+	private char[] buffer = new char[128];
+	private int length = 0;
+	private CharBuffer view = CharBuffer.wrap(buffer);
+	private List<String> frame = new ArrayList<>();
+	
+	public IntcodeConsole(LineListener lines) {
+		this(lines, null, null);
+	}
+	
+	/** Any of these can be null if you don't care about that kind of output. */
+	public IntcodeConsole(LineListener lines, FrameListener frames, LongConsumer numbers) {
+		this.lineListener = lines;
+		this.frameListener = frames;
+		this.numberListener = numbers;
+	}
+	
+	@Override
+	public void push(long value) {
+		if (value<0 || value>127) {
+			if (numberListener!=null) numberListener.accept(value);
+		} else if (value==10) {
+			endLine();
+		} else if (value!=13) {
+			if (length==buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length*2);
+				view = CharBuffer.wrap(buffer);
+			}
+			buffer[length++] = (char)value;
+		}
+	}
+	
+	@Override
+	public void pushAll(long[] values, int offset, int count) {
+		for(int i=offset; i<offset+count; i++) push(values[i]);
+	}
+	
+	/** Sends whatever's after the last newline as a line of its own, and the frame so far if it has anything in it. For once the program halts. */
+	public void flush() {
+		if (length>0) endLine();
+		if (frameListener!=null && !frame.isEmpty()) {
+			frameListener.onFrame(frame);
+			frame = new ArrayList<>();
+		}
+	}
+	
+	private void endLine() {
+		if (length==0 && frameListener!=null) {
+			if (!frame.isEmpty()) {
+				frameListener.onFrame(frame);
+				frame = new ArrayList<>();
+			}
+		} else if (frameListener!=null) {
+			frame.add(new String(buffer, 0, length));
+		}
+		
+		if (lineListener!=null) {
+			view.clear();
+			view.limit(length);
+			lineListener.onLine(view);
+		}
+		length = 0;
+	}
+	
+	public static interface LineListener {
+		/** The line is only good until this returns; the buffer behind it gets reused. Call toString() on it to keep it. */
+		void onLine(CharSequence line);
+	}
+	
+	public static interface FrameListener {
+		/** Every line of one frame, in order. This list is yours to keep. */
+		void onFrame(List<String> lines);
+	}
+}
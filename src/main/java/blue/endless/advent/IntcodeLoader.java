@@ -0,0 +1,262 @@
+package blue.endless.advent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads comma-separated intcode straight into the array (or paged memory) it's going to run from.
+ * The old way was readAllLines, then split(","), then a parse per cell, so there were three or
+ * four copies of the program lying around before the first instruction ran. This parses bytes
+ * as they come, out of a memory-mapped file or a buffered stream, and allocates nothing per cell.
+ *
+ * <p>Files are mapped a window at a time, so their size isn't limited by what fits in one
+ * buffer. Arrays are, though: anything past a couple billion cells has to go through
+ * loadMemory(), which builds IntcodeMemory pages directly and never needs the whole image in one
+ * array.
+ *
+ * <p>Whitespace anywhere between cells is ignored, newlines included, and so is a trailing comma.
+ * Anything else that isn't a number gets a NumberFormatException, same as Long.parseLong would.
+ */
+public class IntcodeLoader {
+	/** How much of a file we map at a time */
+	private static final int MAP_WINDOW = 1 << 28;
+	private static final int READ_BUFFER = 1 << 16;
+	/** Arrays can't quite get to Integer.MAX_VALUE on every VM */
+	private static final long MAX_ARRAY_CELLS = Integer.MAX_VALUE-8;
+	
+	public static long[] load(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			LongArraySink sink = new LongArraySink(arraySize(countCells(channel)));
+			parse(channel, new Parser(sink));
+			return sink.result();
+		}
+	}
+	
+	/** Same as load, but every cell has to fit in an int, for the Day5 and Day7 computers. */
+	public static int[] loadInts(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			IntArraySink sink = new IntArraySink(arraySize(countCells(channel)));
+			parse(channel, new Parser(sink));
+			return sink.result();
+		}
+	}
+	
+	/** Loads the program straight into fresh paged memory, a page at a time, without ever building the whole image as one array. */
+	public static IntcodeMemory loadMemory(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MemorySink sink = new MemorySink();
+			parse(channel, new Parser(sink));
+			return sink.result();
+		}
+	}
+	
+	/** For things that aren't files, like stdin. We can't count cells ahead of time here, so the array grows as it goes. */
+	public static long[] load(InputStream in) throws IOException {
+		LongArraySink sink = new LongArraySink(1024);
+		Parser parser = new Parser(sink);
+		byte[] buffer = new byte[READ_BUFFER];
+		int read;
+		while((read = in.read(buffer))!=-1) {
+			for(int i=0; i<read; i++) parser.accept(buffer[i]);
+		}
+		parser.finish();
+		return sink.result();
+	}
+	
+	/** For programs that are already in memory as text, like the ones in AdventOfCode's input files or written into the code. */
+	public static long[] parse(CharSequence s) {
+		LongArraySink sink = new LongArraySink(arraySize(countCells(s)));
+		parse(s, new Parser(sink));
+		return sink.result();
+	}
+	
+	public static int[] parseInts(CharSequence s) {
+		IntArraySink sink = new IntArraySink(arraySize(countCells(s)));
+		parse(s, new Parser(sink));
+		return sink.result();
+	}
+	
+	private static void parse(FileChannel channel, Parser parser) throws IOException {
+		long size = channel.size();
+		for(long start=0; start<size; start+=MAP_WINDOW) {
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, size-start));
+			int limit = window.limit();
+			for(int i=0; i<limit; i++) parser.accept(window.get(i));
+		}
+		parser.finish();
+	}
+	
+	private static void parse(CharSequence s, Parser parser) {
+		int length = s.length();
+		for(int i=0; i<length; i++) parser.accept(s.charAt(i));
+		parser.finish();
+	}
+	
+	/**
+	 * One more than the number of commas, which is the number of cells unless there's a trailing
+	 * comma. Scanning for commas is a lot cheaper than parsing, and it means the array gets
+	 * allocated once at the right size instead of doubling its way up.
+	 */
+	private static long countCells(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long commas = 0;
+		for(long start=0; start<size; start+=MAP_WINDOW) {
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, size-start));
+			int limit = window.limit();
+			for(int i=0; i<limit; i++) if (window.get(i)==',') commas++;
+		}
+		return commas+1;
+	}
+	
+	private static long countCells(CharSequence s) {
+		long commas = 0;
+		int length = s.length();
+		for(int i=0; i<length; i++) if (s.charAt(i)==',') commas++;
+		return commas+1;
+	}
+	
+	private static int arraySize(long cells) {
+		if (cells>MAX_ARRAY_CELLS) throw new IllegalArgumentException("Program has "+cells+" cells, which is too many for an array; use loadMemory");
+		return (int)cells;
+	}
+	
+	/**
+	 * The actual parser. Takes one character at a time so it doesn't care where the buffer
+	 * boundaries fall, and keeps its running value negative the way Long.parseLong does, so
+	 * Long.MIN_VALUE parses and overflow is caught exactly.
+	 */
+	private static final class Parser {
+		private final CellSink sink;
+		private long cell = 0;
+		private long value = 0;
+		private boolean negative = false;
+		private boolean signed = false;
+		private boolean digits = false;
+		/** Whitespace after digits. The cell's done; another digit before a comma would be a mistake. */
+		private boolean ended = false;
+		
+		Parser(CellSink sink) {
+			this.sink = sink;
+		}
+		
+		void accept(int ch) {
+			if (ch>='0' && ch<='9') {
+				if (ended) throw error("missing comma");
+				int digit = ch-'0';
+				long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+				if (value < limit/10 || value*10 < limit+digit) throw error("value out of range");
+				value = value*10 - digit;
+				digits = true;
+			} else if (ch==',') {
+				if (!digits) throw error("empty cell");
+				emit();
+			} else if (ch=='-' || ch=='+') {
+				if (digits || signed || ended) throw error("misplaced '"+(char)ch+"'");
+				negative = (ch=='-');
+				signed = true;
+			} else if (ch==' ' || ch=='\n' || ch=='\r' || ch=='\t') {
+				if (digits) {
+					ended = true;
+				} else if (signed) {
+					throw error("sign without a number");
+				}
+			} else {
+				throw error("unexpected character '"+(char)ch+"'");
+			}
+		}
+		
+		void finish() {
+			if (digits) {
+				emit();
+			} else if (signed) {
+				throw error("sign without a number");
+			}
+		}
+		
+		private void emit() {
+			sink.accept(cell, negative ? value : -value);
+			cell++;
+			value = 0;
+			negative = false;
+			signed = false;
+			digits = false;
+			ended = false;
+		}
+		
+		private NumberFormatException error(String message) {
+			return new NumberFormatException("Bad intcode at cell "+cell+": "+message);
+		}
+	}
+	
+	private static interface CellSink {
+		void accept(long cell, long value);
+	}
+	
+	private static final class LongArraySink implements CellSink {
+		private long[] values;
+		private int size = 0;
+		
+		LongArraySink(int capacity) {
+			values = new long[Math.max(1, capacity)];
+		}
+		
+		@Override
+		public void accept(long cell, long value) {
+			if (size==values.length) values = Arrays.copyOf(values, (int)Math.min(MAX_ARRAY_CELLS, values.length*2L));
+			values[size++] = value;
+		}
+		
+		long[] result() {
+			return (size==values.length) ? values : Arrays.copyOf(values, size);
+		}
+	}
+	
+	private static final class IntArraySink implements CellSink {
+		private int[] values;
+		private int size = 0;
+		
+		IntArraySink(int capacity) {
+			values = new int[Math.max(1, capacity)];
+		}
+		
+		@Override
+		public void accept(long cell, long value) {
+			if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE) throw new NumberFormatException("Bad intcode at cell "+cell+": "+value+" doesn't fit in an int");
+			if (size==values.length) values = Arrays.copyOf(values, (int)Math.min(MAX_ARRAY_CELLS, values.length*2L));
+			values[size++] = (int)value;
+		}
+		
+		int[] result() {
+			return (size==values.length) ? values : Arrays.copyOf(values, size);
+		}
+	}
+	
+	/** Fills one page at a time and hands each to the memory as soon as it's full. */
+	private static final class MemorySink implements CellSink {
+		private final IntcodeMemory memory = new IntcodeMemory();
+		private long[] page = new long[IntcodeMemory.PAGE_SIZE];
+		private long cells = 0;
+		
+		@Override
+		public void accept(long cell, long value) {
+			int offset = (int)cell & IntcodeMemory.PAGE_MASK;
+			page[offset] = value;
+			if (offset==IntcodeMemory.PAGE_MASK) {
+				memory.installPage(cell >>> IntcodeMemory.PAGE_BITS, page);
+				page = new long[IntcodeMemory.PAGE_SIZE];
+			}
+			cells = cell+1;
+		}
+		
+		IntcodeMemory result() {
+			if ((cells & IntcodeMemory.PAGE_MASK)!=0) memory.installPage(cells >>> IntcodeMemory.PAGE_BITS, page);
+			memory.setImageLength(cells);
+			return memory;
+		}
+	}
+}
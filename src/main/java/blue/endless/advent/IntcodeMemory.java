@@ -0,0 +1,286 @@
+package blue.endless.advent;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Paged memory for the intcode computer. Cells live in fixed-size pages which only get allocated
+ * the first time something writes to them; reading a page nobody has written just gives zeroes.
+ *
+ * <p>Pages near the bottom of the address space (where the program and its stack actually live)
+ * are found through a plain array of pages. Anything above DENSE_PAGES goes through a small
+ * open-addressed hash table instead, so a program can poke at address 2^60 without us reserving
+ * anything in between. Addresses are treated as unsigned 64-bit values here; deciding what a
+ * negative address means is ProgramState's job.
+ *
+ * <p>Pages are copy-on-write between forks. fork() just copies the page directory and marks
+ * every page as shared on both sides; whoever writes to a shared page first gets a private copy
+ * of it. So a fork costs a few pointers up front, plus one page per page written afterwards.
+ */
+public class IntcodeMemory {
+	public static final int PAGE_BITS = 10;
+	public static final int PAGE_SIZE = 1 << PAGE_BITS;
+	public static final int PAGE_MASK = PAGE_SIZE-1;
+	/** How many pages the dense directory may grow to before we give up and use the sparse table (4M cells) */
+	public static final int DENSE_PAGES = 4096;
+	
+	private long[][] dense;
+	/** False for pages we share with a fork and must copy before writing */
+	private boolean[] denseOwned;
+	private long imageLength;
+	
+	private long[] sparseKeys = new long[0];
+	private long[][] sparsePages = new long[0][];
+	private boolean[] sparseOwned = new boolean[0];
+	private int sparseCount = 0;
+	
+	public IntcodeMemory() {
+		dense = new long[1][];
+		denseOwned = new boolean[1];
+	}
+	
+	/**
+	 * Returns a new memory with the same contents as this one. Nothing is copied until one side or
+	 * the other writes to a page, so this is cheap enough to do thousands of times.
+	 */
+	public IntcodeMemory fork() {
+		IntcodeMemory result = new IntcodeMemory();
+		result.dense = dense.clone();
+		result.denseOwned = new boolean[dense.length];
+		Arrays.fill(denseOwned, false);
+		result.imageLength = imageLength;
+		
+		result.sparseKeys = sparseKeys.clone();
+		result.sparsePages = sparsePages.clone();
+		result.sparseOwned = new boolean[sparseOwned.length];
+		result.sparseCount = sparseCount;
+		Arrays.fill(sparseOwned, false);
+		
+		return result;
+	}
+	
+	/** Creates a memory holding a copy of the program image, starting at address 0. */
+	public static IntcodeMemory of(long[] image) {
+		IntcodeMemory memory = new IntcodeMemory();
+		memory.load(image);
+		return memory;
+	}
+	
+	public void load(long[] image) {
+		for(int start=0; start<image.length; start+=PAGE_SIZE) {
+			long[] page = new long[PAGE_SIZE];
+			System.arraycopy(image, start, page, 0, Math.min(PAGE_SIZE, image.length-start));
+			putPage(start >>> PAGE_BITS, page, true);
+		}
+		imageLength = Math.max(imageLength, image.length);
+	}
+	
+	/** The length of the program image this memory was loaded with. Code is expected to live below this. */
+	public long imageLength() {
+		return imageLength;
+	}
+	
+	public long read(long address) {
+		long pageIndex = address >>> PAGE_BITS;
+		if (pageIndex<dense.length) {
+			long[] page = dense[(int)pageIndex];
+			if (page!=null) return page[(int)address & PAGE_MASK];
+		}
+		
+		return readSlow(address);
+	}
+	
+	/** Kept out of read() so the common case stays small enough to inline everywhere. */
+	private long readSlow(long address) {
+		long[] page = getPage(address >>> PAGE_BITS);
+		return (page==null) ? 0L : page[(int)address & PAGE_MASK];
+	}
+	
+	public void write(long address, long value) {
+		long pageIndex = address >>> PAGE_BITS;
+		if (pageIndex<dense.length && denseOwned[(int)pageIndex]) {
+			dense[(int)pageIndex][(int)address & PAGE_MASK] = value;
+			return;
+		}
+		
+		pageForWrite(pageIndex)[(int)address & PAGE_MASK] = value;
+	}
+	
+	/**
+	 * Slow path for writes: finds or allocates the page, growing the directory if that's where it
+	 * belongs. If the page is shared with a fork, this is where it gets copied.
+	 */
+	private long[] pageForWrite(long pageIndex) {
+		long[] page = getPage(pageIndex);
+		if (page==null) {
+			page = new long[PAGE_SIZE];
+			putPage(pageIndex, page, true);
+		} else if (!isOwned(pageIndex)) {
+			page = page.clone();
+			putPage(pageIndex, page, true);
+		}
+		return page;
+	}
+	
+	private boolean isOwned(long pageIndex) {
+		if (pageIndex<dense.length) return denseOwned[(int)pageIndex];
+		int slot = sparseSlot(pageIndex);
+		return slot>=0 && sparseOwned[slot];
+	}
+	
+	private long[] getPage(long pageIndex) {
+		if (pageIndex<dense.length) return dense[(int)pageIndex];
+		return sparsePage(pageIndex);
+	}
+	
+	private void putPage(long pageIndex, long[] page, boolean owned) {
+		if (pageIndex<DENSE_PAGES) {
+			if (pageIndex>=dense.length) {
+				int newLength = (int)Math.min(DENSE_PAGES, Math.max(pageIndex+1, dense.length*2L));
+				dense = Arrays.copyOf(dense, newLength);
+				denseOwned = Arrays.copyOf(denseOwned, newLength);
+			}
+			dense[(int)pageIndex] = page;
+			denseOwned[(int)pageIndex] = owned;
+		} else {
+			putSparsePage(pageIndex, page, owned);
+		}
+	}
+	
+	/**
+	 * Hands every allocated page to the visitor, dense pages in address order and then the sparse
+	 * ones in no particular order. The arrays are live and may be shared with a fork, so look but
+	 * don't touch.
+	 */
+	public void forEachPage(PageVisitor visitor) {
+		for(int i=0; i<dense.length; i++) {
+			if (dense[i]!=null) visitor.visit(i, dense[i]);
+		}
+		for(int i=0; i<sparseKeys.length; i++) {
+			if (sparsePages[i]!=null) visitor.visit(sparseKeys[i], sparsePages[i]);
+		}
+	}
+	
+	/**
+	 * Puts this memory back the way image is, where image is what it was forked from and hasn't
+	 * been written since, and tells changed about every address that had a different value. Only
+	 * pages we had to copy can differ, and since they're ours they get fixed in place, so once a
+	 * program's working pages have been copied the first time, running it again allocates nothing.
+	 * 
+	 * <p>If one of those pages has been shared with a fork of our own in the meantime, we can't
+	 * touch it; this returns false without changing anything, and the caller should fork image
+	 * again instead.
+	 */
+	public boolean revertTo(IntcodeMemory image, LongConsumer changed) {
+		for(int i=0; i<dense.length; i++) {
+			if (dense[i]!=null && !denseOwned[i] && dense[i]!=image.getPage(i)) return false;
+		}
+		for(int i=0; i<sparseKeys.length; i++) {
+			if (sparsePages[i]!=null && !sparseOwned[i] && sparsePages[i]!=image.getPage(sparseKeys[i])) return false;
+		}
+		
+		for(int i=0; i<dense.length; i++) {
+			if (denseOwned[i] && dense[i]!=null) revertPage(i, dense[i], image.getPage(i), changed);
+		}
+		for(int i=0; i<sparseKeys.length; i++) {
+			if (sparseOwned[i] && sparsePages[i]!=null) revertPage(sparseKeys[i], sparsePages[i], image.getPage(sparseKeys[i]), changed);
+		}
+		return true;
+	}
+	
+	private static void revertPage(long pageIndex, long[] page, long[] original, LongConsumer changed) {
+		long base = pageIndex << PAGE_BITS;
+		for(int i=0; i<PAGE_SIZE; i++) {
+			long value = (original==null) ? 0L : original[i];
+			if (page[i]!=value) {
+				page[i] = value;
+				changed.accept(base+i);
+			}
+		}
+	}
+	
+	/** Puts a whole page in place at once, and this memory owns it from then on. For IntcodeCheckpoint. */
+	void installPage(long pageIndex, long[] page) {
+		putPage(pageIndex, page, true);
+	}
+	
+	void setImageLength(long imageLength) {
+		this.imageLength = imageLength;
+	}
+	
+	public static interface PageVisitor {
+		void visit(long pageIndex, long[] page);
+	}
+	
+	/** Number of pages that have actually been allocated. Memory use is this times PAGE_SIZE longs, plus change. */
+	public int pageCount() {
+		int result = sparseCount;
+		for(long[] page : dense) if (page!=null) result++;
+		return result;
+	}
+	
+	/* ****************************************************************************************** *
+	 * Sparse page table. Keys are page indices, linear probing, and a null page means the slot is
+	 * empty. Pages are never freed, so we never need tombstones.
+	 * ****************************************************************************************** */
+	
+	private long[] sparsePage(long pageIndex) {
+		int slot = sparseSlot(pageIndex);
+		return (slot<0) ? null : sparsePages[slot];
+	}
+	
+	private int sparseSlot(long pageIndex) {
+		if (sparseCount==0) return -1;
+		int mask = sparseKeys.length-1;
+		for(int slot = hash(pageIndex) & mask; sparsePages[slot]!=null; slot = (slot+1) & mask) {
+			if (sparseKeys[slot]==pageIndex) return slot;
+		}
+		return -1;
+	}
+	
+	private void putSparsePage(long pageIndex, long[] page, boolean owned) {
+		if ((sparseCount+1)*2 > sparseKeys.length) growSparse();
+		int mask = sparseKeys.length-1;
+		int slot = hash(pageIndex) & mask;
+		while(sparsePages[slot]!=null && sparseKeys[slot]!=pageIndex) slot = (slot+1) & mask;
+		if (sparsePages[slot]==null) sparseCount++;
+		sparseKeys[slot] = pageIndex;
+		sparsePages[slot] = page;
+		sparseOwned[slot] = owned;
+	}
+	
+	private void growSparse() {
+		long[] oldKeys = sparseKeys;
+		long[][] oldPages = sparsePages;
+		boolean[] oldOwned = sparseOwned;
+		int newSize = Math.max(8, oldKeys.length*2);
+		sparseKeys = new long[newSize];
+		sparsePages = new long[newSize][];
+		sparseOwned = new boolean[newSize];
+		sparseCount = 0;
+		for(int i=0; i<oldKeys.length; i++) {
+			if (oldPages[i]!=null) putSparsePage(oldKeys[i], oldPages[i], oldOwned[i]);
+		}
+	}
+	
+	private static int hash(long pageIndex) {
+		long h = pageIndex * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	/** Dumps the dense region up to the last allocated page, which is what the old flat array used to print. */
+	@Override
+	public String toString() {
+		int lastPage = dense.length-1;
+		while(lastPage>=0 && dense[lastPage]==null) lastPage--;
+		
+		StringBuilder result = new StringBuilder("[");
+		for(long address=0; address<(lastPage+1L)*PAGE_SIZE; address++) {
+			if (address>0) result.append(", ");
+			result.append(read(address));
+		}
+		result.append(']');
+		if (sparseCount>0) result.append(" + ").append(sparseCount).append(" sparse pages");
+		return result.toString();
+	}
+}
@@ -0,0 +1,309 @@
+package blue.endless.advent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bunch of IntcodeCores wired together, run on a thread pool. Instead of wiring lists
+ * between machines by hand and round-robining every one of them, each node has an inbox, and a
+ * node only gets scheduled when something lands in its inbox (or when the network starts). Nodes
+ * that are halted or waiting on input cost nothing, so this is fine with thousands of them.
+ *
+ * <p>Where a node's output goes is up to its Route. There are routes for plain links (which cover
+ * pipelines, rings, and broadcast) and for addressed packets. Anything routed to the network
+ * itself ends up in {@link #output}.
+ *
+ * <p>A node only ever runs on one thread at a time, so its core doesn't need to be thread-safe;
+ * only inboxes and the network output get locked.
+ *
+ * <p>On a ForkJoinPool, a node runs until it halts or needs input, like it always has. Give the
+ * network an IntcodeScheduler instead and nodes get time-sliced: one that's still going at the
+ * end of its quantum goes to the back of the queue, so a node that never yields can't hold a
+ * thread forever. (ForkJoinPool runs a worker's own submissions newest first, so requeueing there
+ * would just pick the same node right back up.)
+ */
+public class IntcodeNetwork {
+	/** Pass this as a packet address to send to the network output instead of a node. */
+	public static final int NETWORK_ADDRESS = -1;
+	
+	private final Executor executor;
+	/** Instructions per slice; unlimited unless we're on an IntcodeScheduler */
+	private final long quantum;
+	private final List<Node> nodes = new ArrayList<>();
+	/** How many nodes are scheduled or running. When this hits zero, nothing can happen until someone sends something. */
+	private final AtomicInteger pending = new AtomicInteger();
+	
+	/** Everything routed out of the network. Lock it before touching it while the network is running. */
+	public final IntcodeChannel output = new IntcodeChannel();
+	
+	public IntcodeNetwork() {
+		this(ForkJoinPool.commonPool());
+	}
+	
+	public IntcodeNetwork(ForkJoinPool pool) {
+		this.executor = pool;
+		this.quantum = Long.MAX_VALUE;
+	}
+	
+	public IntcodeNetwork(IntcodeScheduler scheduler) {
+		this.executor = scheduler;
+		this.quantum = scheduler.quantum();
+	}
+	
+	/** Adds a node running the given core. Its output goes to the network output until you give it a route. */
+	public Node add(Day9.IntcodeCore core) {
+		Node node = new Node(this, nodes.size(), core);
+		nodes.add(node);
+		return node;
+	}
+	
+	/** Adds count nodes, all forked from the same loaded program, so they share its pages until they write to them. */
+	public List<Node> addAll(long[] program, int count) {
+		Day9.IntcodeCore template = new Day9.IntcodeCore();
+		template.setMemory(program);
+		
+		List<Node> result = new ArrayList<>();
+		for(int i=0; i<count; i++) result.add(add(template.fork()));
+		return result;
+	}
+	
+	public Node node(int id) {
+		return nodes.get(id);
+	}
+	
+	public int size() {
+		return nodes.size();
+	}
+	
+	/** Schedules every node once, so each one runs until it halts or needs input. */
+	public void start() {
+		for(Node node : nodes) node.schedule();
+	}
+	
+	/** Blocks until every node is halted or waiting on an empty inbox. */
+	public void awaitQuiescence() throws InterruptedException {
+		synchronized(pending) {
+			while(pending.get()>0) pending.wait();
+		}
+	}
+	
+	/** start() and awaitQuiescence() together. */
+	public void run() {
+		start();
+		try {
+			awaitQuiescence();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public boolean allHalted() {
+		for(Node node : nodes) if (!node.core.state.isHalted()) return false;
+		return true;
+	}
+	
+	private void finished() {
+		if (pending.decrementAndGet()==0) {
+			synchronized(pending) {
+				pending.notifyAll();
+			}
+		}
+	}
+	
+	private void deliverToNetwork(long[] values, int offset, int length) {
+		synchronized(output) {
+			output.pushAll(values, offset, length);
+		}
+	}
+	
+	/** Prints each node's counters, busiest first. */
+	public void printStats() {
+		List<Node> sorted = new ArrayList<>(nodes);
+		sorted.sort((a, b)->Long.compare(b.busyNanos, a.busyNanos));
+		for(Node node : sorted) System.out.println(node.stats());
+	}
+	
+	/* ****************************************************************************************** *
+	 * Topologies. These just set up routes and return the nodes, so a driver can push settings
+	 * into inboxes before starting the network.
+	 * ****************************************************************************************** */
+	
+	/** Each node feeds the next, and the last one feeds the network output. */
+	public static IntcodeNetwork pipeline(long[] program, int count) {
+		IntcodeNetwork network = new IntcodeNetwork();
+		List<Node> nodes = network.addAll(program, count);
+		for(int i=0; i<count-1; i++) nodes.get(i).route = Route.to(nodes.get(i+1));
+		return network;
+	}
+	
+	/**
+	 * Each node feeds the next, and the last one feeds the first. Once the first node halts,
+	 * whatever the last node sends it stays in its inbox, which is where Day7's answer ends up.
+	 */
+	public static IntcodeNetwork ring(long[] program, int count) {
+		IntcodeNetwork network = new IntcodeNetwork();
+		List<Node> nodes = network.addAll(program, count);
+		for(int i=0; i<count; i++) nodes.get(i).route = Route.to(nodes.get((i+1) % count));
+		return network;
+	}
+	
+	/** Node 0 sends a copy of everything it outputs to every other node. Everyone else feeds the network output. */
+	public static IntcodeNetwork broadcast(long[] program, int count) {
+		IntcodeNetwork network = new IntcodeNetwork();
+		List<Node> nodes = network.addAll(program, count);
+		nodes.get(0).route = Route.to(nodes.subList(1, count).toArray(new Node[0]));
+		return network;
+	}
+	
+	/** Every node talks in packets of [address, packetSize-1 values], like a NIC would. */
+	public static IntcodeNetwork addressed(long[] program, int count, int packetSize) {
+		IntcodeNetwork network = new IntcodeNetwork();
+		List<Node> nodes = network.addAll(program, count);
+		for(Node node : nodes) node.route = Route.packets(packetSize);
+		return network;
+	}
+	
+	/** Decides where a node's output goes. Only ever called from the node's own slice, so it may keep state. */
+	public static interface Route {
+		public void deliver(Node from, long[] values, int count);
+		
+		/** Sends everything to the network output. */
+		public static final Route NETWORK = (from, values, count)->from.network.deliverToNetwork(values, 0, count);
+		
+		/** Sends a copy of everything to each target, in order. */
+		public static Route to(Node... targets) {
+			return (from, values, count)->{
+				for(Node target : targets) target.send(values, 0, count);
+			};
+		}
+		
+		/**
+		 * Splits output into packets of packetSize values, the first being the destination node's id
+		 * (or NETWORK_ADDRESS). The rest of the packet goes to that node's inbox. Partial packets are
+		 * held until the rest shows up. Packets to addresses that don't exist are dropped.
+		 */
+		public static Route packets(int packetSize) {
+			long[] partial = new long[packetSize];
+			int[] partialLength = { 0 };
+			return (from, values, count)->{
+				for(int i=0; i<count; i++) {
+					partial[partialLength[0]++] = values[i];
+					if (partialLength[0]<packetSize) continue;
+					partialLength[0] = 0;
+					
+					long address = partial[0];
+					if (address==NETWORK_ADDRESS) {
+						from.network.deliverToNetwork(partial, 1, packetSize-1);
+					} else if (address>=0 && address<from.network.nodes.size()) {
+						from.network.nodes.get((int)address).send(partial, 1, packetSize-1);
+					}
+				}
+			};
+		}
+	}
+	
+	public static class Node implements Runnable {
+		public final IntcodeNetwork network;
+		public final int id;
+		public final Day9.IntcodeCore core;
+		public Route route = Route.NETWORK;
+		
+		/** Values sent to us from other threads. Moved into the core's input at the start of each slice. */
+		private final IntcodeChannel inbox = new IntcodeChannel();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private long[] scratch = new long[16];
+		
+		/* Throughput counters. Only written by the node's own slices, so read them once the network is quiet. */
+		public long slices = 0;
+		public long valuesIn = 0;
+		public long valuesOut = 0;
+		public long busyNanos = 0;
+		
+		private Node(IntcodeNetwork network, int id, Day9.IntcodeCore core) {
+			this.network = network;
+			this.id = id;
+			this.core = core;
+			core.state.prefix = "node "+id;
+		}
+		
+		/** Adds values to this node's inbox and makes sure it gets a chance to read them. Safe from any thread. */
+		public void send(long... values) {
+			send(values, 0, values.length);
+		}
+		
+		public void send(long[] values, int offset, int length) {
+			synchronized(inbox) {
+				inbox.pushAll(values, offset, length);
+			}
+			schedule();
+		}
+		
+		private void schedule() {
+			if (core.state.isHalted()) return; //Racy, but halt only goes one way and run() checks again
+			if (scheduled.compareAndSet(false, true)) {
+				network.pending.incrementAndGet();
+				network.executor.execute(this);
+			}
+		}
+		
+		/** One slice: take in the inbox, run until the core halts, wants more input, or uses up its quantum, and route whatever it said. */
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			Day9.ProgramState state = core.state;
+			
+			//A halted node leaves its inbox alone, so whatever was sent to it afterwards can still be looked at
+			if (!state.isHalted()) {
+				synchronized(inbox) {
+					valuesIn += inbox.size();
+					while(!inbox.isEmpty()) state.input.push(inbox.poll());
+				}
+				
+				if (!state.waits()) core.runFor(network.quantum);
+			}
+			
+			if (!state.output.isEmpty()) {
+				if (scratch.length<state.output.size()) scratch = new long[Integer.highestOneBit(state.output.size())*2];
+				int count = state.output.drain(scratch, 0, scratch.length);
+				valuesOut += count;
+				route.deliver(this, scratch, count);
+			}
+			
+			slices++;
+			busyNanos += System.nanoTime()-start;
+			
+			//Anything that arrived after we emptied the inbox either saw us scheduled and skipped
+			//scheduling us, or comes after this and schedules us itself. Either way, check.
+			boolean preempted = !state.isHalted() && !state.waits();
+			scheduled.set(false);
+			boolean moreMail;
+			synchronized(inbox) {
+				moreMail = !inbox.isEmpty();
+			}
+			if ((moreMail || preempted) && !state.isHalted()) schedule();
+			
+			network.finished();
+		}
+		
+		/** The inbox, for looking at what's piled up after the network is quiet (like a ring's final signal). */
+		public long[] inboxContents() {
+			synchronized(inbox) {
+				long[] result = new long[inbox.size()];
+				for(int i=0; i<result.length; i++) result[i] = inbox.get(i);
+				return result;
+			}
+		}
+		
+		public String stats() {
+			double seconds = busyNanos/1_000_000_000.0;
+			return String.format("%s: %d slices, %d in, %d out, %.3f ms busy, %.0f values/s%s",
+					core.state.prefix, slices, valuesIn, valuesOut, busyNanos/1_000_000.0,
+					(seconds>0) ? (valuesIn+valuesOut)/seconds : 0.0,
+					core.state.isHalted() ? ", halted" : "");
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package blue.endless.advent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts where an intcode program spends its time: instructions per opcode, how often each
+ * program counter runs, and reads/writes per memory page. Attach it as a core's tracer; detached,
+ * it costs exactly what no tracer costs, which is one null check per instruction.
+ *
+ * <p>Like any tracer, attaching this turns the compiler off for the core, so the numbers are for
+ * the interpreter. Memory traffic is worked out from each instruction's operands before it runs,
+ * and only counts data, not instruction fetches.
+ */
+public class IntcodeProfiler implements Day9.TraceListener<Day9.ProgramState> {
+	/** How many hot spots and pages report() lists */
+	public static final int REPORT_LINES = 20;
+	
+	private final long[] opcodeCounts = new long[100];
+	private final Counts pcCounts = new Counts();
+	private final Counts pageReads = new Counts();
+	private final Counts pageWrites = new Counts();
+	private long instructions = 0;
+	private long startNanos = 0;
+	private long lastNanos = 0;
+	private IntcodeMemory lastMemory = null;
+	private long lastBase = 0;
+	
+	/** Print a report as soon as the profiled program runs HLT. */
+	public boolean reportOnHalt = true;
+	
+	public static IntcodeProfiler attach(Day9.IntcodeCore core) {
+		IntcodeProfiler profiler = new IntcodeProfiler();
+		core.tracer = profiler;
+		return profiler;
+	}
+	
+	public static void detach(Day9.IntcodeCore core) {
+		if (core.tracer instanceof IntcodeProfiler) core.tracer = null;
+	}
+	
+	@Override
+	public void trace(Day9.ProgramState state) {
+		//An IN with nothing to read is about to wait, and gets traced again when it's resumed and
+		//actually runs. Only count that second one.
+		long pc = state.programCounter;
+		long opcodeAndMode = state.memory.read(pc);
+		if (opcodeAndMode>=0 && opcodeAndMode%100==3 && state.in().isEmpty()) return;
+		
+		long now = System.nanoTime();
+		if (instructions==0) startNanos = now;
+		lastNanos = now;
+		instructions++;
+		lastMemory = state.memory;
+		lastBase = state.baseAddress;
+		
+		pcCounts.add(pc, 1);
+		
+		if (opcodeAndMode<0) return;
+		int opcode = (int)(opcodeAndMode % 100);
+		long modes = opcodeAndMode / 100;
+		opcodeCounts[opcode]++;
+		
+		switch(opcode) {
+		case 1: case 2: case 7: case 8:
+			countRead(state, modes, 0);
+			countRead(state, modes, 1);
+			countWrite(state, modes, 2);
+			break;
+		case 3:
+			countWrite(state, modes, 0);
+			break;
+		case 4: case 9:
+			countRead(state, modes, 0);
+			break;
+		case 5: case 6:
+			countRead(state, modes, 0);
+			countRead(state, modes, 1);
+			break;
+		case 99:
+			if (reportOnHalt) report();
+			break;
+		}
+	}
+	
+	private void countRead(Day9.ProgramState state, long modes, int argNumber) {
+		long address = operandAddress(state, modes, argNumber);
+		if (address>=0) pageReads.add(address >>> IntcodeMemory.PAGE_BITS, 1);
+	}
+	
+	private void countWrite(Day9.ProgramState state, long modes, int argNumber) {
+		long address = operandAddress(state, modes, argNumber);
+		if (address>=0) pageWrites.add(address >>> IntcodeMemory.PAGE_BITS, 1);
+	}
+	
+	/** Where an operand points, or -1 for immediates and addresses the machine won't actually touch. */
+	private static long operandAddress(Day9.ProgramState state, long modes, int argNumber) {
+		for(int i=0; i<argNumber; i++) modes /= 10;
+		long operand = state.memory.read(state.programCounter+argNumber+1);
+		switch((int)(modes % 10)) {
+		case 0: return operand;
+		case 2: return state.baseAddress+operand;
+		default: return -1;
+		}
+	}
+	
+	public long instructions() {
+		return instructions;
+	}
+	
+	/** Instructions per second, from the first traced instruction to the last. Includes the profiler's own overhead. */
+	public double instructionsPerSecond() {
+		long elapsed = lastNanos-startNanos;
+		return (elapsed>0) ? instructions / (elapsed/1_000_000_000.0) : 0.0;
+	}
+	
+	public long opcodeCount(int opcode) {
+		return opcodeCounts[opcode];
+	}
+	
+	public long pcCount(long pc) {
+		return pcCounts.get(pc);
+	}
+	
+	public void reset() {
+		Arrays.fill(opcodeCounts, 0);
+		pcCounts.clear();
+		pageReads.clear();
+		pageWrites.clear();
+		instructions = 0;
+	}
+	
+	public void report() {
+		System.out.println(String.format("Profile: %d instructions in %.3f ms (%.0f instructions/s)",
+				instructions, (lastNanos-startNanos)/1_000_000.0, instructionsPerSecond()));
+		
+		System.out.println("  By opcode:");
+		Integer[] opcodes = new Integer[opcodeCounts.length];
+		for(int i=0; i<opcodes.length; i++) opcodes[i] = i;
+		Arrays.sort(opcodes, (a, b)->Long.compare(opcodeCounts[b], opcodeCounts[a]));
+		for(int opcode : opcodes) {
+			if (opcodeCounts[opcode]==0) break;
+			System.out.println(String.format("    %-4s %12d  %5.1f%%", mnemonic(opcode), opcodeCounts[opcode], percent(opcodeCounts[opcode])));
+		}
+		
+		System.out.println("  Hot spots (relative operands shown against the final base address):");
+		for(long[] entry : pcCounts.top(REPORT_LINES)) {
+			String disassembly = "";
+			if (lastMemory!=null) {
+				long pc = entry[0];
+				disassembly = Day9.disassemble(lastMemory.read(pc), lastMemory.read(pc+1), lastMemory.read(pc+2), lastMemory.read(pc+3), lastBase);
+			}
+			System.out.println(String.format("    @%-8d %12d  %5.1f%%  %s", entry[0], entry[1], percent(entry[1]), disassembly));
+		}
+		
+		if (lastMemory!=null) reportBlocks(lastMemory);
+		
+		System.out.println("  Pages (reads / writes):");
+		Counts traffic = new Counts();
+		pageReads.forEach(traffic::add);
+		pageWrites.forEach(traffic::add);
+		for(long[] entry : traffic.top(REPORT_LINES)) {
+			long page = entry[0];
+			System.out.println(String.format("    %8d..%-8d %12d / %-12d", page << IntcodeMemory.PAGE_BITS, ((page+1) << IntcodeMemory.PAGE_BITS)-1, pageReads.get(page), pageWrites.get(page)));
+		}
+	}
+	
+	/**
+	 * Adds up the hot spots by basic block. Every pc we saw run goes in as a root for the CFG, so
+	 * blocks only reachable through indirect jumps still get found.
+	 */
+	private void reportBlocks(IntcodeMemory memory) {
+		List<long[]> executed = pcCounts.top(Integer.MAX_VALUE);
+		long[] roots = new long[executed.size()];
+		for(int i=0; i<roots.length; i++) roots[i] = executed.get(i)[0];
+		IntcodeCfg cfg = IntcodeCfg.analyze(memory, roots);
+		
+		Counts blockCounts = new Counts();
+		long outside = 0;
+		for(long[] entry : executed) {
+			IntcodeCfg.Block block = cfg.isInstruction(entry[0]) ? cfg.blockAt(entry[0]) : null;
+			if (block==null) {
+				outside += entry[1];
+			} else {
+				blockCounts.add(block.start, entry[1]);
+			}
+		}
+		
+		System.out.println("  Hot blocks (instructions run, times entered):");
+		for(long[] entry : blockCounts.top(REPORT_LINES)) {
+			IntcodeCfg.Block block = cfg.blockStartingAt(entry[0]);
+			System.out.println(String.format("    %-14s %12d  %5.1f%%  %10d  %-8s %s",
+					block, entry[1], percent(entry[1]), pcCounts.get(block.start), (block.function==null) ? "" : block.function, block.exit));
+		}
+		if (outside>0) System.out.println(String.format("    (%d instructions ran outside the image, or in code that's since been overwritten)", outside));
+	}
+	
+	private double percent(long count) {
+		return (instructions>0) ? 100.0*count/instructions : 0.0;
+	}
+	
+	private static String mnemonic(int opcode) {
+		switch(opcode) {
+		case 1: return "ADD";
+		case 2: return "MUL";
+		case 3: return "IN";
+		case 4: return "OUT";
+		case 5: return "JNZ";
+		case 6: return "JZ";
+		case 7: return "LES";
+		case 8: return "EQU";
+		case 9: return "ADR";
+		case 99: return "HLT";
+		default: return "?"+opcode;
+		}
+	}
+	
+	/**
+	 * Counters keyed by a non-negative long. Low keys (where programs actually live) go in a plain
+	 * array so counting stays cheap; anything past DENSE_KEYS goes in a map.
+	 */
+	private static class Counts {
+		private static final int DENSE_KEYS = 1 << 20;
+		
+		private long[] dense = new long[1024];
+		private final Map<Long, Long> sparse = new HashMap<>();
+		
+		void add(long key, long amount) {
+			if (key>=0 && key<DENSE_KEYS) {
+				if (key>=dense.length) dense = Arrays.copyOf(dense, (int)Math.min(DENSE_KEYS, Math.max(key+1, dense.length*2L)));
+				dense[(int)key] += amount;
+			} else {
+				sparse.merge(key, amount, Long::sum);
+			}
+		}
+		
+		long get(long key) {
+			if (key>=0 && key<dense.length) return dense[(int)key];
+			return sparse.getOrDefault(key, 0L);
+		}
+		
+		void clear() {
+			Arrays.fill(dense, 0);
+			sparse.clear();
+		}
+		
+		void forEach(CountConsumer consumer) {
+			for(int i=0; i<dense.length; i++) if (dense[i]!=0) consumer.accept(i, dense[i]);
+			for(Map.Entry<Long, Long> entry : sparse.entrySet()) consumer.accept(entry.getKey(), entry.getValue());
+		}
+		
+		/** The count highest {key, count} pairs, highest first. */
+		List<long[]> top(int count) {
+			List<long[]> all = new ArrayList<>();
+			forEach((key, value)->all.add(new long[] { key, value }));
+			all.sort((a, b)->Long.compare(b[1], a[1]));
+			return all.subList(0, Math.min(count, all.size()));
+		}
+	}
+	
+	private static interface CountConsumer {
+		void accept(long key, long count);
+	}
+}
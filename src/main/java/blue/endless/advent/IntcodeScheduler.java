@@ -0,0 +1,185 @@
+package blue.endless.advent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Time-slices intcode cores over a few threads. A core gets a slice of at most quantum
+ * instructions (see IntcodeCore.runFor) and then goes to the back of the line, so a core stuck in
+ * a loop only ever costs everyone else one quantum per go-round instead of a thread forever.
+ *
+ * <p>There are two lines. Interactive work (a driver waiting on the Day13 arcade or the Day15
+ * droid, with a human or a search on the other end) goes ahead of background work, so its
+ * latency is about one quantum no matter how many background cores are busy. Every
+ * INTERACTIVE_STREAK slices, background work gets a turn anyway, so a busy interactive core can't
+ * starve the rest either.
+ *
+ * <p>Anything can go through execute(), which is how IntcodeNetwork uses this; submit() is for
+ * single cores that a driver talks to directly.
+ */
+public class IntcodeScheduler implements Executor, AutoCloseable {
+	/** Instructions per slice if you don't say otherwise. Tens of microseconds on the interpreter. */
+	public static final long DEFAULT_QUANTUM = 20_000;
+	/** How many slices in a row interactive work can have while background work is waiting */
+	public static final int INTERACTIVE_STREAK = 4;
+	
+	private final long quantum;
+	private final ArrayDeque<Runnable> interactive = new ArrayDeque<>();
+	private final ArrayDeque<Runnable> background = new ArrayDeque<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private int streak = 0;
+	private boolean closed = false;
+	
+	public IntcodeScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM);
+	}
+	
+	public IntcodeScheduler(int threads, long quantum) {
+		this.quantum = Math.max(1, quantum);
+		for(int i=0; i<Math.max(1, threads); i++) {
+			Thread worker = new Thread(this::work, "intcode-scheduler-"+i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+	
+	public long quantum() {
+		return quantum;
+	}
+	
+	/** Queues a task behind the rest of the background work. */
+	@Override
+	public void execute(Runnable task) {
+		enqueue(background, task);
+	}
+	
+	/** Queues a task ahead of all the background work. */
+	public void executeInteractive(Runnable task) {
+		enqueue(interactive, task);
+	}
+	
+	private synchronized void enqueue(ArrayDeque<Runnable> line, Runnable task) {
+		if (closed) throw new IllegalStateException("Scheduler is closed");
+		line.add(task);
+		notify();
+	}
+	
+	/** Starts running core in the background. It keeps getting slices until it halts or waits for input; then it's up to you to resume() it. */
+	public Job submit(Day9.IntcodeCore core) {
+		Job job = new Job(core, false);
+		job.resume();
+		return job;
+	}
+	
+	/** submit(), but in the interactive line. */
+	public Job submitInteractive(Day9.IntcodeCore core) {
+		Job job = new Job(core, true);
+		job.resume();
+		return job;
+	}
+	
+	/** The next task to run, or null once we're closed and there's nothing left. */
+	private synchronized Runnable next() throws InterruptedException {
+		while(interactive.isEmpty() && background.isEmpty()) {
+			if (closed) return null;
+			wait();
+		}
+		if (!interactive.isEmpty() && (streak<INTERACTIVE_STREAK || background.isEmpty())) {
+			streak++;
+			return interactive.poll();
+		}
+		streak = 0;
+		return background.poll();
+	}
+	
+	private void work() {
+		try {
+			Runnable task;
+			while((task = next())!=null) {
+				try {
+					task.run();
+				} catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
+			}
+		} catch (InterruptedException ex) {
+			//Nobody interrupts these but the VM going down
+		}
+	}
+	
+	/** Stops taking new work. Whatever's already queued still runs, and then the threads exit. */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+	
+	/**
+	 * One core, run a slice at a time. While the job is running, the core belongs to the scheduler;
+	 * once awaitYield() returns, it's halted or waiting on input and the caller can push input, read
+	 * output, and resume() it.
+	 */
+	public class Job implements Runnable {
+		public final Day9.IntcodeCore core;
+		private final boolean interactive;
+		private boolean running = false;
+		
+		/** How many slices and instructions this core has had. Only safe to look at while it's yielded. */
+		public long slices = 0;
+		public long instructions = 0;
+		
+		private Job(Day9.IntcodeCore core, boolean interactive) {
+			this.core = core;
+			this.interactive = interactive;
+		}
+		
+		@Override
+		public void run() {
+			instructions += core.runFor(quantum);
+			slices++;
+			
+			Day9.ProgramState state = core.state;
+			if (!state.isHalted() && !state.waits()) {
+				try {
+					requeue(); //Used up its quantum
+					return;
+				} catch (IllegalStateException ex) {
+					//Closed under us. Leave it where it stopped, and let whoever's waiting know.
+				}
+			}
+			synchronized(this) {
+				running = false;
+				notifyAll();
+			}
+		}
+		
+		/** Gives the core more slices, if it isn't halted or already running. Push its input first. */
+		public void resume() {
+			synchronized(this) {
+				if (running || core.state.isHalted()) return;
+				running = true;
+			}
+			requeue();
+		}
+		
+		private void requeue() {
+			if (interactive) {
+				executeInteractive(this);
+			} else {
+				execute(this);
+			}
+		}
+		
+		public synchronized boolean isRunning() {
+			return running;
+		}
+		
+		/** Blocks until the core halts or needs input. */
+		public synchronized void awaitYield() throws InterruptedException {
+			while(running) wait();
+		}
+	}
+}
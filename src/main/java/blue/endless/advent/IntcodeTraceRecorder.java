@@ -0,0 +1,409 @@
+package blue.endless.advent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every instruction a core runs to a binary file, for when PRINT_TRACE is way too slow to
+ * live with. Each instruction is one fixed-width record of RECORD_LONGS longs:
+ * <pre>
+ *   pc, opcode and modes, three argument cells, base address, result
+ * </pre>
+ * which is everything Day9.disassemble needs, so render() turns a trace back into exactly the
+ * lines verbose mode would have printed, long after the machine is gone. The result is whatever
+ * the instruction produced: the value it stored or output, where a jump went, or the new base.
+ *
+ * <p>The core's side of this is cheap: trace() copies a few cells into a preallocated ring and
+ * bumps a counter. A background thread drains the ring into the file through memory-mapped
+ * windows, so the core never does I/O itself, and the file can grow as big as the disk allows.
+ * After every batch it puts the new record count in the header, so a trace whose recorder never
+ * got closed (the process died, say) still reads back everything that made it out of the ring.
+ * The core only ever waits if it gets a whole ring ahead of the disk; close() reports how often
+ * that happened.
+ *
+ * <p>A record's result isn't known until the instruction has run, so each record gets finished
+ * and handed to the drain thread when the next one starts (or on close). An IN that has to wait
+ * for input shows up twice, once when it waits and once when it runs, same as in verbose output.
+ *
+ * <p>File layout, little-endian:
+ * <pre>
+ *   int magic ("ICTR"), int version, int record bytes, int prefix bytes
+ *   long record count (how many records are in the file so far)
+ *   prefix (UTF-8), zero-padded to a multiple of 8
+ *   records
+ * </pre>
+ */
+public class IntcodeTraceRecorder implements Day9.TraceListener<Day9.ProgramState>, AutoCloseable {
+	public static final int MAGIC = 'I' | 'C' << 8 | 'T' << 16 | 'R' << 24;
+	public static final int VERSION = 1;
+	public static final int RECORD_LONGS = 7;
+	public static final int RECORD_BYTES = RECORD_LONGS*8;
+	/** Ring size if you don't ask for one: about 56MB, which is a lot of instructions to get ahead by */
+	public static final int DEFAULT_RING_RECORDS = 1 << 20;
+	
+	private static final int FIXED_HEADER_BYTES = 4*4 + 8;
+	private static final int COUNT_OFFSET = 4*4;
+	/** How many records the drain thread maps at once; a whole number of records, so none straddle two windows */
+	private static final int WINDOW_RECORDS = 1 << 22;
+	private static final long DRAIN_IDLE_NANOS = 100_000L;
+	private static final long FULL_WAIT_NANOS = 10_000L;
+	
+	private final FileChannel channel;
+	private final long dataStart;
+	private final long[] ring;
+	private final int ringRecords;
+	private final int ringMask;
+	
+	/** Records handed to the drain thread. Only the core writes this. */
+	private final AtomicLong published = new AtomicLong();
+	/** Records the drain thread has copied out of the ring. Only the drain thread writes this. */
+	private final AtomicLong drained = new AtomicLong();
+	private volatile boolean closing = false;
+	private volatile IOException drainFailure = null;
+	private final Thread drainThread;
+	
+	//Core-side state. None of this is touched by the drain thread.
+	private long started = 0;
+	private long drainedSeen = 0;
+	private Day9.ProgramState pendingState = null;
+	private long stalls = 0;
+	private boolean closed = false;
+	
+	public IntcodeTraceRecorder(Path path, String prefix) throws IOException {
+		this(path, prefix, DEFAULT_RING_RECORDS);
+	}
+	
+	/** Opens path for a new trace (replacing anything there) and starts the drain thread. ringRecords gets rounded up to a power of two. */
+	public IntcodeTraceRecorder(Path path, String prefix, int ringRecords) throws IOException {
+		int size = 2;
+		while(size<ringRecords) size <<= 1;
+		this.ringRecords = size;
+		this.ringMask = size-1;
+		this.ring = new long[size*RECORD_LONGS];
+		
+		byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+		this.dataStart = FIXED_HEADER_BYTES + align(prefixBytes.length);
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		
+		ByteBuffer header = ByteBuffer.allocate((int)dataStart).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(RECORD_BYTES);
+		header.putInt(prefixBytes.length);
+		header.putLong(0L);
+		header.put(prefixBytes);
+		header.position(0);
+		while(header.hasRemaining()) channel.write(header, header.position());
+		
+		drainThread = new Thread(this::drain, "intcode-trace-drain");
+		drainThread.setDaemon(true);
+		drainThread.start();
+	}
+	
+	/** Starts recording everything core runs into path. Call close() when you're done, or the last records never make it out. */
+	public static IntcodeTraceRecorder attach(Day9.IntcodeCore core, Path path) throws IOException {
+		IntcodeTraceRecorder recorder = new IntcodeTraceRecorder(path, core.state.prefix);
+		core.tracer = recorder;
+		return recorder;
+	}
+	
+	public static void detach(Day9.IntcodeCore core) {
+		if (core.tracer instanceof IntcodeTraceRecorder) core.tracer = null;
+	}
+	
+	@Override
+	public void trace(Day9.ProgramState state) {
+		if (closed) return;
+		if (pendingState!=null) finishPending();
+		
+		if (started-drainedSeen >= ringRecords) waitForRoom();
+		
+		IntcodeMemory memory = state.memory;
+		long pc = state.programCounter;
+		int at = (int)(started & ringMask)*RECORD_LONGS;
+		long[] ring = this.ring;
+		ring[at  ] = pc;
+		ring[at+1] = memory.read(pc);
+		ring[at+2] = memory.read(pc+1);
+		ring[at+3] = memory.read(pc+2);
+		ring[at+4] = memory.read(pc+3);
+		ring[at+5] = state.baseAddress;
+		ring[at+6] = 0L;
+		started++;
+		pendingState = state;
+	}
+	
+	/** Fills in the result for the record that's been waiting on its instruction to run, and publishes it. */
+	private void finishPending() {
+		Day9.ProgramState state = pendingState;
+		pendingState = null;
+		int at = (int)((started-1) & ringMask)*RECORD_LONGS;
+		long opcodeAndMode = ring[at+1];
+		long modes = opcodeAndMode/100;
+		long base = ring[at+5];
+		
+		long result = 0L;
+		if (opcodeAndMode>=0) {
+			switch((int)(opcodeAndMode % 100)) {
+			case 1: case 2: case 7: case 8:
+				result = peek(state.memory, (int)(modes/100 % 10), ring[at+4], base, true);
+				break;
+			case 3:
+				result = peek(state.memory, (int)(modes % 10), ring[at+2], base, true);
+				break;
+			case 4:
+				result = peek(state.memory, (int)(modes % 10), ring[at+2], base, false);
+				break;
+			case 5: case 6:
+				result = state.programCounter;
+				break;
+			case 9:
+				result = state.baseAddress;
+				break;
+			default:
+				break;
+			}
+		}
+		ring[at+6] = result;
+		published.lazySet(started);
+	}
+	
+	/**
+	 * Reads an argument the way load() would, minus the errors and halting, once the instruction
+	 * has run. Looking afterwards is fine for OUT, which doesn't write anything. A destination in
+	 * immediate mode never got written, so it has no result.
+	 */
+	private static long peek(IntcodeMemory memory, int mode, long operand, long base, boolean destination) {
+		long address;
+		switch(mode) {
+		case 0: address = operand; break;
+		case 1: if (destination) return 0L; return operand;
+		case 2: address = base+operand; break;
+		default: return 0L;
+		}
+		return (address<0) ? 0L : memory.read(address);
+	}
+	
+	private void waitForRoom() {
+		stalls++;
+		while(started-(drainedSeen = drained.get()) >= ringRecords) {
+			if (drainFailure!=null) throw new UncheckedIOException("Trace drain failed", drainFailure);
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+		}
+	}
+	
+	/** The drain thread: copies whatever's been published out of the ring and into the file, a window at a time. */
+	private void drain() {
+		long next = 0;
+		LongBuffer window = null;
+		long windowIndex = -1;
+		try {
+			while(true) {
+				long available = published.get();
+				if (next==available) {
+					if (closing && next==published.get()) break;
+					LockSupport.parkNanos(DRAIN_IDLE_NANOS);
+					continue;
+				}
+				
+				while(next<available) {
+					long recordWindow = next / WINDOW_RECORDS;
+					if (recordWindow!=windowIndex) {
+						windowIndex = recordWindow;
+						MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, dataStart + windowIndex*WINDOW_RECORDS*RECORD_BYTES, (long)WINDOW_RECORDS*RECORD_BYTES);
+						window = mapped.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+					}
+					int ringSlot = (int)(next & ringMask);
+					int windowSlot = (int)(next % WINDOW_RECORDS);
+					long count = Math.min(available-next, Math.min(ringRecords-ringSlot, WINDOW_RECORDS-windowSlot));
+					window.position(windowSlot*RECORD_LONGS);
+					window.put(ring, ringSlot*RECORD_LONGS, (int)count*RECORD_LONGS);
+					next += count;
+					drained.lazySet(next);
+				}
+				//The window runs past the last record, and the file with it, so readers go by this
+				writeCount(next);
+			}
+		} catch (IOException ex) {
+			drainFailure = ex;
+		}
+	}
+	
+	private void writeCount(long records) throws IOException {
+		ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		count.putLong(0, records);
+		while(count.hasRemaining()) channel.write(count, COUNT_OFFSET+count.position());
+	}
+	
+	/** Total instructions recorded so far, including one that may still be waiting on its result. */
+	public long recordCount() {
+		return started;
+	}
+	
+	/** How many times the core had to wait for the drain thread because the ring was full. */
+	public long stalls() {
+		return stalls;
+	}
+	
+	/**
+	 * Finishes the last record, waits for the drain thread to get everything into the file, and
+	 * trims the file down to what's actually in it. Call this from the thread that ran the core.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		if (pendingState!=null) finishPending();
+		closed = true;
+		closing = true;
+		LockSupport.unpark(drainThread);
+		try {
+			drainThread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the trace to drain", ex);
+		}
+		
+		try {
+			if (drainFailure!=null) throw drainFailure;
+			writeCount(started);
+			channel.truncate(dataStart + started*RECORD_BYTES);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/* ****************************************************************************************** *
+	 * Reading traces back
+	 * ****************************************************************************************** */
+	
+	/** Called for every record in a trace, in the order the instructions ran. */
+	public static interface RecordVisitor {
+		void visit(long pc, long opcodeAndMode, long a, long b, long c, long baseAddress, long result);
+	}
+	
+	/**
+	 * Walks every record in a trace file. A trace whose recorder never got closed reads up to the
+	 * last batch the drain thread finished, which is what the count in the header says. Returns
+	 * the prefix the trace was recorded with.
+	 */
+	public static String read(Path path, RecordVisitor visitor) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			Header header = readHeader(channel, path);
+			walk(channel, header, visitor);
+			return header.prefix;
+		}
+	}
+	
+	/**
+	 * Writes a trace out as text, one line per instruction, in the same format PRINT_TRACE uses.
+	 * With results on, each line gets what the instruction produced tacked on the end.
+	 */
+	public static void render(Path path, Appendable out, boolean withResults) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			Header header = readHeader(channel, path);
+			StringBuilder line = new StringBuilder();
+			IOException[] failure = { null };
+			walk(channel, header, (pc, opcodeAndMode, a, b, c, base, result)->{
+				if (failure[0]!=null) return;
+				line.setLength(0);
+				line.append(header.prefix).append("> ").append(Day9.disassemble(opcodeAndMode, a, b, c, base));
+				if (withResults) line.append("    ; @").append(pc).append(" = ").append(result);
+				line.append('\n');
+				try {
+					out.append(line);
+				} catch (IOException ex) {
+					failure[0] = ex;
+				}
+			});
+			if (failure[0]!=null) throw failure[0];
+		}
+	}
+	
+	private static Header readHeader(FileChannel channel, Path path) throws IOException {
+		ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, fixed, 0, path);
+		fixed.flip();
+		if (fixed.getInt()!=MAGIC) throw new IOException(path+" isn't an intcode trace");
+		int version = fixed.getInt();
+		if (version!=VERSION) throw new IOException("Trace "+path+" is version "+version+", but we only know "+VERSION);
+		if (fixed.getInt()!=RECORD_BYTES) throw new IOException("Trace "+path+" has the wrong record size");
+		int prefixLength = fixed.getInt();
+		long count = fixed.getLong();
+		if (prefixLength<0 || prefixLength>channel.size() || count<0) throw new IOException("Trace "+path+" is corrupt");
+		
+		ByteBuffer prefix = ByteBuffer.allocate(prefixLength);
+		readFully(channel, prefix, FIXED_HEADER_BYTES, path);
+		
+		Header header = new Header();
+		header.prefix = new String(prefix.array(), StandardCharsets.UTF_8);
+		header.dataStart = FIXED_HEADER_BYTES + align(prefixLength);
+		//Never trust a count past the end of the file, in case it got cut short after the fact
+		long inFile = Math.max(0, channel.size()-header.dataStart) / RECORD_BYTES;
+		header.count = Math.min(count, inFile);
+		return header;
+	}
+	
+	private static void walk(FileChannel channel, Header header, RecordVisitor visitor) throws IOException {
+		long[] record = new long[RECORD_LONGS];
+		for(long start=0; start<header.count; start+=WINDOW_RECORDS) {
+			int records = (int)Math.min(WINDOW_RECORDS, header.count-start);
+			LongBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, header.dataStart + start*RECORD_BYTES, (long)records*RECORD_BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			for(int i=0; i<records; i++) {
+				window.get(record);
+				visitor.visit(record[0], record[1], record[2], record[3], record[4], record[5], record[6]);
+			}
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path path) throws IOException {
+		while(buffer.hasRemaining()) {
+			if (channel.read(buffer, position+buffer.position())<0) throw new IOException("Trace "+path+" is truncated");
+		}
+	}
+	
+	private static class Header {
+		String prefix;
+		long dataStart;
+		long count;
+	}
+	
+	/** Records a run of programFile with the given inputs into traceFile, then prints how it went. */
+	public static void record(String programFile, String traceFile, long... inputs) {
+		try {
+			Day9.IntcodeCore core = new Day9.IntcodeCore();
+			core.setMemory(IntcodeLoader.loadMemory(Paths.get(programFile)));
+			core.state.input.pushAll(inputs);
+			
+			long start = System.nanoTime();
+			IntcodeTraceRecorder recorder = attach(core, Paths.get(traceFile));
+			try {
+				core.runFast();
+			} finally {
+				recorder.close();
+				detach(core);
+			}
+			long elapsed = System.nanoTime()-start;
+			
+			System.out.println("Output: "+core.state.output);
+			System.out.println(String.format("Recorded %d instructions to %s in %.1f ms (%d stalls)", recorder.recordCount(), traceFile, elapsed/1_000_000.0, recorder.stalls()));
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	private static int align(int bytes) {
+		return (bytes+7) & ~7;
+	}
+}
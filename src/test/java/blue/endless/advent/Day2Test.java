@@ -0,0 +1,45 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class Day2Test {
+	
+	@Test
+	public void tapeMatchesExec() {
+		List<Integer> list = Day2.decode(AdventOfCode.loadFile("intcode.txt").get(0));
+		int[] image = new int[list.size()];
+		for(int i=0; i<image.length; i++) image[i] = list.get(i);
+		
+		list.set(1, 12);
+		list.set(2, 2);
+		Day2.execFully(list);
+		
+		Day2.Tape tape = new Day2.Tape(image.length);
+		assertEquals((int)list.get(0), tape.run(image, 12, 2));
+		assertFalse(tape.crashed());
+	}
+	
+	/** A crash isn't an answer, not even when its return value happens to be the one we wanted. */
+	@Test
+	public void crashesAreFlagged() {
+		Day2.Tape tape = new Day2.Tape(8);
+		int[] badOpcode = { 1,0,0,0, 42 };
+		int result = tape.run(badOpcode, 0, 0);
+		assertTrue(tape.crashed());
+		assertEquals(0, result);
+		
+		int[] negativeAddress = { 1,0,0,0, 99 };
+		tape.run(negativeAddress, -7, 0);
+		assertTrue(tape.crashed());
+		
+		//The flag clears for the next run
+		assertEquals(2, tape.run(negativeAddress, 0, 0));
+		assertFalse(tape.crashed());
+	}
+}
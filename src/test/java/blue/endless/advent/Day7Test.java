@@ -0,0 +1,29 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class Day7Test {
+	
+	@Test
+	public void resonantBankExample() {
+		int[] program = Day7.decodeMemory("3,26,1001,26,-4,26,3,27,1002,27,2,27,1,27,26,27,4,27,1001,28,-1,28,1005,28,6,99,0,0,5");
+		Day7.ShipComputer[] bank = Day7.createResonantBank(5);
+		assertEquals(139629729, Day7.runResonantBank(program, bank, false, 9, 8, 7, 6, 5));
+	}
+	
+	/**
+	 * The amp set to 5 halts straight away, and the rest wait forever on input it'll never send.
+	 * Nobody's runnable, but they aren't all waiting either, so only the no-progress check can
+	 * stop the bank.
+	 */
+	@Test(timeout = 10_000)
+	public void resonantBankGivesUpWhenStuck() {
+		int[] program = Arrays.copyOf(new int[] { 3,30, 1008,30,5,31, 1005,31,15, 3,30, 1105,1,9, 0, 99 }, 32);
+		Day7.ShipComputer[] bank = Day7.createResonantBank(5);
+		assertEquals(-1, Day7.runResonantBank(program, bank, false, 5, 6, 7, 8, 9));
+	}
+}
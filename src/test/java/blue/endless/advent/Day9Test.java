@@ -0,0 +1,81 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Fused instructions have to be invisible: same memory, same output, same instruction count as running them one at a time. */
+public class Day9Test {
+	
+	/**
+	 * EQU 5 5 -> [4] writes a 1 over the JNZ it's fused with, which turns it into ADD [4] [20] -> [21].
+	 * Done right, that ADD bumps the 104 at cell 20 and the OUT prints 105. Done wrong, the stale JNZ
+	 * jumps away (to cell 20 and its 666, if we're lucky) and 105 never comes out.
+	 */
+	private static final long[] OVERWRITES_ITS_BRANCH = {
+			1108, 5, 5, 4,    // 0: EQU 5 5 -> [4]
+			1005, 4, 20, 21,  // 4: JNZ [4] 20, until cell 4 becomes a 1
+			4, 21,            // 8: OUT [21]
+			99,               //10: HLT
+			0, 0, 0, 0, 0, 0, 0, 0, 0,
+			104, 666, 99      //20: OUT 666, HLT
+	};
+	
+	/** LES straight into a JNZ that takes the jump, then ADR straight into an ADD, then HLT. Two pairs, five instructions. */
+	private static final long[] TWO_PAIRS = {
+			1107, 1, 2, 15,   // 0: LES 1 2 -> [15]
+			1005, 15, 8,      // 4: JNZ [15] 8
+			99,               // 7: HLT, if the jump didn't happen
+			109, 16,          // 8: ADR 16
+			21101, 2, 3, 0,   //10: ADD 2 3 -> ADR:0
+			99,               //14: HLT
+			0,                //15: the comparison
+			0                 //16: the sum
+	};
+	
+	@Test
+	public void fusedPairThatOverwritesItself() {
+		Day9.IntcodeCore fused = core(OVERWRITES_ITS_BRANCH, true);
+		assertEquals(Day9.ProgramState.FUSED_COMPARE_BRANCH, fused.state.decode(0) >> Day9.ProgramState.FUSION_SHIFT);
+		long fusedCount = fused.runFor(Long.MAX_VALUE);
+		
+		Day9.IntcodeCore plain = core(OVERWRITES_ITS_BRANCH, false);
+		long plainCount = plain.runFor(Long.MAX_VALUE);
+		
+		assertArrayEquals(new long[] { 105 }, fused.state.output.drainAll());
+		assertArrayEquals(new long[] { 105 }, plain.state.output.drainAll());
+		assertEquals(4, plainCount); //EQU, ADD, OUT, HLT
+		assertEquals(plainCount, fusedCount);
+		assertEquals(plain.state.programCounter, fused.state.programCounter);
+		for(int i=0; i<OVERWRITES_ITS_BRANCH.length; i++) assertEquals("cell "+i, plain.state.memory.read(i), fused.state.memory.read(i));
+	}
+	
+	@Test
+	public void fusedPairsCountAsTwo() {
+		Day9.IntcodeCore fused = core(TWO_PAIRS, true);
+		assertEquals(Day9.ProgramState.FUSED_COMPARE_BRANCH, fused.state.decode(0) >> Day9.ProgramState.FUSION_SHIFT);
+		assertEquals(Day9.ProgramState.FUSED_ADR_STORE, fused.state.decode(8) >> Day9.ProgramState.FUSION_SHIFT);
+		assertEquals(5, fused.runFor(Long.MAX_VALUE));
+		assertEquals(5, fused.state.memory.read(16));
+		
+		Day9.IntcodeCore plain = core(TWO_PAIRS, false);
+		assertEquals(5, plain.runFor(Long.MAX_VALUE));
+		
+		//A tracer turns fusion off and sees every instruction on its own, so it's the reference count
+		long[] traced = { 0 };
+		Day9.IntcodeCore tracedCore = core(TWO_PAIRS, true);
+		tracedCore.tracer = (state)->traced[0]++;
+		long tracedCount = tracedCore.runFor(Long.MAX_VALUE);
+		assertEquals(5, traced[0]);
+		assertEquals(traced[0], tracedCount);
+	}
+	
+	private static Day9.IntcodeCore core(long[] program, boolean fuse) {
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = null;
+		core.fuseInstructions = fuse;
+		core.setMemory(program.clone());
+		return core;
+	}
+}
@@ -0,0 +1,51 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DisassemblyTest {
+	
+	/** One of everything, in every addressing mode at least once. */
+	@Test
+	public void everyOpcode() {
+		assertEquals("ADD [5] 6 -> [7]", Day9.disassemble(1001, 5, 6, 7, 0));
+		assertEquals("MUL 5 [6] -> [7]", Day9.disassemble(102, 5, 6, 7, 0));
+		assertEquals("IN  [5]", Day9.disassemble(3, 5, 0, 0, 0));
+		assertEquals("IN  ADR:-2(8)", Day9.disassemble(203, -2, 0, 0, 10));
+		assertEquals("OUT 5", Day9.disassemble(104, 5, 0, 0, 0));
+		assertEquals("JNZ [5] 6", Day9.disassemble(1005, 5, 6, 0, 0));
+		assertEquals("JZ  5 [6]", Day9.disassemble(106, 5, 6, 0, 0));
+		assertEquals("LES ADR:1(11) 2 -> ADR:3(13)", Day9.disassemble(21207, 1, 2, 3, 10));
+		assertEquals("EQU [5] [6] -> [7]", Day9.disassemble(8, 5, 6, 7, 0));
+		assertEquals("ADR 5", Day9.disassemble(109, 5, 0, 0, 0));
+		assertEquals("HLT", Day9.disassemble(99, 0, 0, 0, 0));
+		assertEquals("HCF", Day9.disassemble(-1, 0, 0, 0, 0));
+		assertEquals("ERROR", Day9.disassemble(42, 0, 0, 0, 0));
+		assertEquals("ADD ?3?5 6 -> [7]", Day9.disassemble(1301, 5, 6, 7, 0));
+	}
+	
+	/** The older machines used to have their own spellings. They don't get to anymore. */
+	@Test
+	public void everyDaySaysTheSameThing() {
+		String program = "1001,9,6,9,1108,3,3,10,99,7,0";
+		
+		Day5.ProgramState day5 = new Day5.ProgramState();
+		day5.memory = IntcodeLoader.parseInts(program);
+		Day7.ProgramState day7 = new Day7.ProgramState();
+		day7.memory = IntcodeLoader.parseInts(program);
+		Day9.ProgramState day9 = new Day9.ProgramState();
+		day9.memory = IntcodeMemory.of(IntcodeLoader.parse(program));
+		
+		for(int pc : new int[] { 0, 4, 8 }) {
+			day5.programCounter = pc;
+			day7.programCounter = pc;
+			day9.programCounter = pc;
+			assertEquals(day9.disassemble(), day5.disassemble());
+			assertEquals(day9.disassemble(), day7.disassemble());
+		}
+		
+		day5.programCounter = 4;
+		assertEquals("EQU 3 3 -> [10]", day5.disassemble());
+	}
+}
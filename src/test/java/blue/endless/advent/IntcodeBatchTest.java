@@ -0,0 +1,93 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class IntcodeBatchTest {
+	/**
+	 * Counts cell 40 up to the limit at cell 6, outputs it, then raises the limit (writing into
+	 * its own code) and goes around once more before halting, so it outputs 300 and then 400 and
+	 * leaves its code different from how it started.
+	 */
+	private static final long[] SELF_MODIFYING = {
+		1001,40,1,40, 1007,40,300,41, 1005,41,0, 4,40, 1005,42,27, 1101,0,1,42, 1101,0,400,6, 1105,1,0, 99,
+		0,0,0,0,0,0,0,0,0,0,0,0,0,0,0
+	};
+	
+	private static Day9.IntcodeCore fresh(long[] program) {
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = null;
+		core.setMemory(program.clone());
+		return core;
+	}
+	
+	private static long[] cells(Day9.ProgramState state, int length) {
+		long[] result = new long[length];
+		for(int i=0; i<length; i++) result[i] = state.memory.read(i);
+		return result;
+	}
+	
+	@Test
+	public void resetToRevertsInPlace() {
+		Day9.IntcodeCore expected = fresh(SELF_MODIFYING);
+		expected.runFast();
+		
+		IntcodeMemory image = IntcodeMemory.of(SELF_MODIFYING);
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = null;
+		core.state.resetTo(image);
+		IntcodeMemory memory = core.state.memory;
+		core.runFast();
+		assertArrayEquals(new long[] { 300, 400 }, core.state.output.drainAll());
+		
+		core.state.resetTo(image);
+		assertSame("second reset should revert in place", memory, core.state.memory);
+		assertArrayEquals(SELF_MODIFYING, cells(core.state, SELF_MODIFYING.length));
+		core.runFast();
+		
+		assertArrayEquals(expected.state.output.drainAll(), core.state.output.drainAll());
+		assertArrayEquals(cells(expected.state, SELF_MODIFYING.length), cells(core.state, SELF_MODIFYING.length));
+		assertEquals(expected.state.programCounter, core.state.programCounter);
+		//Nothing may have leaked back into the image either
+		for(int i=0; i<SELF_MODIFYING.length; i++) assertEquals(SELF_MODIFYING[i], image.read(i));
+	}
+	
+	/** Same again with the compiler on, which has to notice the revert writing over its blocks. */
+	@Test
+	public void resetToKeepsCompiledCodeHonest() {
+		IntcodeMemory image = IntcodeMemory.of(SELF_MODIFYING);
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = new IntcodeCompiler();
+		for(int run=0; run<4; run++) {
+			core.state.resetTo(image);
+			core.runFast();
+			assertArrayEquals("run "+run, new long[] { 300, 400 }, core.state.output.drainAll());
+		}
+	}
+	
+	@Test
+	public void batchMatchesFreshCores() {
+		long[] program = Day9.decode(AdventOfCode.loadFile("day5.dat").get(0));
+		try (IntcodeBatch batch = new IntcodeBatch(program, 2)) {
+			for(long systemId : new long[] { 1, 5, 1, 5 }) {
+				Day9.IntcodeCore core = fresh(program);
+				core.state.input.push(systemId);
+				core.runFast();
+				assertArrayEquals(core.state.output.drainAll(), batch.run(systemId));
+			}
+			
+			List<long[]> results = batch.runAll(IntStream.range(0, 1000).mapToObj((i)->new long[] { (i%2==0) ? 1 : 5 })).collect(Collectors.toList());
+			long[] one = batch.run(1L);
+			long[] five = batch.run(5L);
+			assertEquals(1000, results.size());
+			for(int i=0; i<results.size(); i++) assertArrayEquals("job "+i, (i%2==0) ? one : five, results.get(i));
+		}
+	}
+}
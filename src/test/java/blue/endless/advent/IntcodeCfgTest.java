@@ -0,0 +1,122 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IntcodeCfgTest {
+	/**
+	 * A main that calls a function the way the AoC compiler does, then branches on what the function
+	 * left in cell 40. Laid out by hand, so every block boundary is known:
+	 * <pre>
+	 * @0..8    ADR 100; ADD 9 0 -> ADR:0; JNZ 1 20    CALL fn@20, comes back to @9
+	 * @9..11   JZ [40] 14                             BRANCH to @14 or @12
+	 * @12..13  OUT 7                                  FALLTHROUGH into @14
+	 * @14      HLT
+	 * @20..30  ADR 1; ADD 5 0 -> [40]; ADR -1; JZ 0 ADR:0    RETURN
+	 * </pre>
+	 */
+	private static final long[] CALLER_AND_CALLEE = {
+			109, 100,            // 0
+			21101, 9, 0, 0,      // 2
+			1105, 1, 20,         // 6
+			1006, 40, 14,        // 9
+			104, 7,              //12
+			99,                  //14
+			0, 0, 0, 0, 0,       //15: not code
+			109, 1,              //20
+			1101, 5, 0, 40,      //22
+			109, -1,             //26
+			2106, 0, 0,          //28
+			0, 0, 0, 0, 0, 0, 0, 0, 0,
+			0                    //40
+	};
+	
+	/**
+	 * An always-taken jump that isn't a call, because the constant stored before it isn't the
+	 * address after it, and then a jump through memory:
+	 * <pre>
+	 * @0..6    ADD 8 0 -> [20]; JNZ 1 7               JUMP to @7
+	 * @7..9    JNZ [20] [20]                          INDIRECT, or on to @10
+	 * @10      HLT
+	 * </pre>
+	 */
+	private static final long[] JUMP_AND_INDIRECT = {
+			1101, 8, 0, 20,      // 0
+			1105, 1, 7,          // 4
+			5, 20, 20,           // 7
+			99,                  //10
+			0, 0, 0, 0, 0, 0, 0, 0, 0,
+			0                    //20
+	};
+	
+	@Test
+	public void blockBoundaries() {
+		IntcodeCfg cfg = IntcodeCfg.analyze(CALLER_AND_CALLEE);
+		assertEquals("[@0..8, @9..11, @12..13, @14..14, @20..30]", cfg.blocks().toString());
+		assertArrayEquals(new int[] { 3, 1, 1, 1, 4 }, cfg.blocks().stream().mapToInt((block)->block.instructions).toArray());
+		
+		assertTrue(cfg.isInstruction(2));
+		assertFalse(cfg.isInstruction(3)); //An operand, not an instruction
+		assertFalse(cfg.isInstruction(15)); //Never reached, so never disassembled
+		assertSame(cfg.blockStartingAt(0), cfg.blockAt(7));
+		assertNull(cfg.blockStartingAt(7));
+		assertNull(cfg.blockAt(17));
+	}
+	
+	@Test
+	public void jumpTargets() {
+		IntcodeCfg cfg = IntcodeCfg.analyze(CALLER_AND_CALLEE);
+		assertEquals("[14, 20]", cfg.jumpTargets().toString());
+		
+		IntcodeCfg.Block branch = cfg.blockStartingAt(9);
+		assertEquals(IntcodeCfg.Exit.BRANCH, branch.exit);
+		assertEquals(Arrays.asList(cfg.blockStartingAt(14), cfg.blockStartingAt(12)), branch.successors);
+		assertEquals(IntcodeCfg.Exit.FALLTHROUGH, cfg.blockStartingAt(12).exit);
+		assertEquals(Arrays.asList(cfg.blockStartingAt(14)), cfg.blockStartingAt(12).successors);
+		assertEquals(Arrays.asList(branch, cfg.blockStartingAt(12)), cfg.blockStartingAt(14).predecessors);
+		assertEquals(IntcodeCfg.Exit.HALT, cfg.blockStartingAt(14).exit);
+		
+		IntcodeCfg other = IntcodeCfg.analyze(JUMP_AND_INDIRECT);
+		assertEquals("[@0..6, @7..9, @10..10]", other.blocks().toString());
+		assertEquals("[7]", other.jumpTargets().toString());
+		assertEquals(IntcodeCfg.Exit.JUMP, other.blockStartingAt(0).exit);
+		assertEquals(Arrays.asList(other.blockStartingAt(7)), other.blockStartingAt(0).successors);
+		assertEquals(IntcodeCfg.Exit.INDIRECT, other.blockStartingAt(7).exit);
+		assertEquals(Arrays.asList(other.blockStartingAt(10)), other.blockStartingAt(7).successors);
+	}
+	
+	@Test
+	public void callDetection() {
+		IntcodeCfg cfg = IntcodeCfg.analyze(CALLER_AND_CALLEE);
+		IntcodeCfg.Block call = cfg.blockStartingAt(0);
+		IntcodeCfg.Block callee = cfg.blockStartingAt(20);
+		assertEquals(IntcodeCfg.Exit.CALL, call.exit);
+		assertSame(cfg.blockStartingAt(9), call.returnSite);
+		assertEquals(Arrays.asList(callee), call.successors);
+		assertEquals(IntcodeCfg.Exit.RETURN, callee.exit);
+		assertTrue(callee.successors.isEmpty());
+		
+		List<IntcodeCfg.Function> functions = cfg.functions();
+		assertEquals("[fn@0, fn@20]", functions.toString());
+		assertEquals(100, functions.get(0).frameSize);
+		assertEquals("[@0..8, @9..11, @12..13, @14..14]", functions.get(0).blocks.toString());
+		assertEquals(1, functions.get(1).frameSize);
+		assertEquals(Arrays.asList(callee), functions.get(1).blocks);
+		assertEquals(Arrays.asList(call), functions.get(1).callers);
+		assertSame(functions.get(1), cfg.functionOf(24));
+		
+		//Same shape of jump, but nothing stored its return address, so it's just a jump
+		IntcodeCfg other = IntcodeCfg.analyze(JUMP_AND_INDIRECT);
+		assertNull(other.blockStartingAt(0).returnSite);
+		assertEquals("[fn@0]", other.functions().toString());
+	}
+}
@@ -0,0 +1,106 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IntcodeCheckpointTest {
+	/** Echoes every input back out, forever */
+	private static final long[] ECHO = { 3,7, 4,7, 1105,1,0, 0 };
+	/** Where a few of the header fields live, for breaking them on purpose (see the class doc for the layout) */
+	private static final int PAGE_COUNT_OFFSET = 12;
+	private static final int INPUT_SIZE_OFFSET = 48;
+	private static final int PREFIX_BYTES_OFFSET = 56;
+	private static final int FIRST_PAGE_OFFSET = 64 + 8 + 8; //header, "echo" padded to 8, one output value
+	
+	private static Day9.IntcodeCore echoCore() {
+		Day9.IntcodeCore core = new Day9.IntcodeCore();
+		core.compiler = null;
+		core.setMemory(ECHO.clone());
+		core.state.prefix = "echo";
+		return core;
+	}
+	
+	@Test
+	public void roundTrip() throws IOException {
+		Day9.IntcodeCore core = echoCore();
+		core.state.input.push(5);
+		core.runFast();
+		core.state.memory.write(1L << 40, 42); //Way out in sparse memory
+		
+		Path path = Files.createTempFile("checkpoint", ".ickp");
+		try {
+			IntcodeCheckpoint.save(core, path);
+			Day9.IntcodeCore restored = echoCore();
+			IntcodeCheckpoint.restore(restored, path);
+			
+			assertEquals("echo", restored.state.prefix);
+			assertEquals(core.state.programCounter, restored.state.programCounter);
+			assertTrue(restored.state.waits());
+			assertArrayEquals(new long[] { 5 }, restored.state.output.drainAll());
+			assertEquals(42, restored.state.memory.read(1L << 40));
+			
+			restored.state.input.push(6);
+			restored.runFast();
+			assertArrayEquals(new long[] { 6 }, restored.state.output.drainAll());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+	
+	@Test
+	public void corruptFilesAreIOExceptions() throws IOException {
+		Day9.IntcodeCore core = echoCore();
+		core.state.input.push(5);
+		core.runFast();
+		
+		Path path = Files.createTempFile("checkpoint", ".ickp");
+		try {
+			IntcodeCheckpoint.save(core, path);
+			byte[] good = Files.readAllBytes(path);
+			assertEquals("layout changed; fix the offsets", ECHO[0], ByteBuffer.wrap(good).order(ByteOrder.LITTLE_ENDIAN).getLong(FIRST_PAGE_OFFSET+8));
+			
+			assertCorrupt(path, patchInt(good, PREFIX_BYTES_OFFSET, Integer.MAX_VALUE));
+			assertCorrupt(path, patchInt(good, PREFIX_BYTES_OFFSET, -1));
+			assertCorrupt(path, patchInt(good, INPUT_SIZE_OFFSET, 1 << 29));
+			assertCorrupt(path, patchInt(good, PAGE_COUNT_OFFSET, 1000));
+			assertCorrupt(path, patchLong(good, FIRST_PAGE_OFFSET, -5L));
+			assertCorrupt(path, Arrays.copyOf(good, good.length-100));
+			assertCorrupt(path, Arrays.copyOf(good, 20));
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+	
+	private static void assertCorrupt(Path path, byte[] contents) throws IOException {
+		Files.write(path, contents);
+		try {
+			IntcodeCheckpoint.read(path);
+			fail("Read a corrupt checkpoint without complaint");
+		} catch (IOException ex) {
+			//Good
+		}
+	}
+	
+	private static byte[] patchInt(byte[] file, int offset, int value) {
+		byte[] result = file.clone();
+		ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, value);
+		return result;
+	}
+	
+	private static byte[] patchLong(byte[] file, int offset, long value) {
+		byte[] result = file.clone();
+		ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN).putLong(offset, value);
+		return result;
+	}
+}
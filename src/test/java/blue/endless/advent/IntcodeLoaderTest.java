@@ -0,0 +1,125 @@
+package blue.endless.advent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * Every case goes through all four ways in: a mapped file, a stream, a string, and paged memory.
+ * They share one parser, but they count cells and size their arrays separately.
+ */
+public class IntcodeLoaderTest {
+	
+	@Test
+	public void negativeNumbers() throws IOException {
+		assertLoads("1,-2,+3,-0", 1, -2, 3, 0);
+		assertLoads("-9223372036854775808,9223372036854775807", Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	@Test
+	public void whitespaceAndLineEndings() throws IOException {
+		assertLoads(" 1 ,\t2,\r\n3\r\n", 1, 2, 3);
+		assertLoads("1,2,\r\n3,4\r\n\r\n", 1, 2, 3, 4);
+		assertRejects("1 2,3");
+		assertRejects("- 1");
+	}
+	
+	@Test
+	public void trailingComma() throws IOException {
+		assertLoads("1,2,3,", 1, 2, 3);
+		assertLoads("1,2,3,\n", 1, 2, 3);
+		assertRejects("1,,2");
+		assertRejects(",1");
+	}
+	
+	/** One past either end of a long, not silently wrapped around. */
+	@Test
+	public void valuesTooLongForALong() throws IOException {
+		assertRejects("1,9223372036854775808");
+		assertRejects("-9223372036854775809,1");
+		assertRejects("99999999999999999999999");
+	}
+	
+	@Test
+	public void emptyFiles() throws IOException {
+		assertLoads("");
+		assertLoads(" \r\n");
+		assertRejects("-");
+	}
+	
+	/** The Day5 and Day7 computers get ints, and a program that doesn't fit is an error, not a truncation. */
+	@Test
+	public void intsMustFitInAnInt() throws IOException {
+		assertArrayEquals(new int[] { Integer.MIN_VALUE, -1, Integer.MAX_VALUE }, IntcodeLoader.parseInts("-2147483648,-1,2147483647,"));
+		try {
+			IntcodeLoader.parseInts("1,2147483648");
+			fail("2147483648 loaded as an int");
+		} catch (NumberFormatException ex) {
+			//Good
+		}
+	}
+	
+	/** Enough cells to fill a page exactly and spill one into the next. */
+	@Test
+	public void pagedMemoryAcrossAPageBoundary() throws IOException {
+		long[] expected = new long[IntcodeMemory.PAGE_SIZE+1];
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<expected.length; i++) {
+			expected[i] = -i;
+			text.append(-i).append(',');
+		}
+		assertLoads(text.toString(), expected);
+	}
+	
+	private static void assertLoads(String text, long... expected) throws IOException {
+		assertArrayEquals("string", expected, IntcodeLoader.parse(text));
+		assertArrayEquals("stream", expected, IntcodeLoader.load(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII))));
+		
+		Path path = Files.createTempFile("intcode", ".dat");
+		try {
+			Files.write(path, text.getBytes(StandardCharsets.US_ASCII));
+			assertArrayEquals("file", expected, IntcodeLoader.load(path));
+			
+			IntcodeMemory memory = IntcodeLoader.loadMemory(path);
+			assertEquals("paged length", expected.length, memory.imageLength());
+			for(int i=0; i<expected.length; i++) assertEquals("paged cell "+i, expected[i], memory.read(i));
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+	
+	private static void assertRejects(String text) throws IOException {
+		try {
+			IntcodeLoader.parse(text);
+			fail("\""+text+"\" parsed from a string");
+		} catch (NumberFormatException ex) {
+			//Good
+		}
+		
+		try {
+			IntcodeLoader.load(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+			fail("\""+text+"\" parsed from a stream");
+		} catch (NumberFormatException ex) {
+			//Good
+		}
+		
+		Path path = Files.createTempFile("intcode", ".dat");
+		try {
+			Files.write(path, text.getBytes(StandardCharsets.US_ASCII));
+			IntcodeLoader.load(path);
+			fail("\""+text+"\" parsed from a file");
+		} catch (NumberFormatException ex) {
+			//Good
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}